@@ -1,36 +1,173 @@
 package com.playtech.assignment;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.DecimalFormat;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 
 // This template shows input parameters format.
 // It is otherwise not mandatory to use, you can write everything from scratch if you wish.
 public class TransactionProcessorSample {
 
-    public static void main(final String[] args) throws IOException {
-        List<User> users = TransactionProcessorSample.readUsers(Paths.get(args[0]));
-        List<Transaction> transactions = TransactionProcessorSample.readTransactions(Paths.get(args[1]));
-        List<BinMapping> binMappings = TransactionProcessorSample.readBinMappings(Paths.get(args[2]));
-        // Read country codes from file
-        Map<String, String> countryCodes = TransactionProcessorSample.readCountryCodes(Path.of("country_codes.txt"));
+    // Management interface of ProcessingMetrics, MXBean interfaces have to be public
+    public interface ProcessingMetricsMXBean {
+        long getRows();
 
-        List<Event> events = TransactionProcessorSample.processTransactions(users, transactions, binMappings, countryCodes);
+        double getRowsPerSecond();
 
-        TransactionProcessorSample.writeBalances(Paths.get(args[3]), users);
-        TransactionProcessorSample.writeEvents(Paths.get(args[4]), events);
+        Map<String, Long> getEventCounts();
+
+        Map<String, Long> getStageMeanNanos();
+
+        Map<String, Long> getStageP99Nanos();
+
+        Map<String, Long> getStageMaxNanos();
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        // Read users, bin mappings and country codes from their files, or from the compiled cache of them
+        Path countryCodesPath = Path.of("country_codes.txt");
+        String referenceCache = TransactionProcessorSample.option(args, "reference-cache");
+        ReferenceData reference = referenceCache == null
+                ? ReferenceData.read(Paths.get(args[0]), Paths.get(args[2]), countryCodesPath)
+                : ReferenceData.load(Paths.get(args[0]), Paths.get(args[2]), countryCodesPath, Path.of(referenceCache));
+        List<User> users = reference.users;
+        BinTable binTable = reference.binTable;
+        CountryTable countryCodes = reference.countryCodes;
+
+        String mode = Objects.requireNonNullElse(TransactionProcessorSample.option(args, "mode"), "list");
+        if (TransactionProcessorSample.option(args, "checkpoint") != null && !mode.equals("streaming")) {
+            throw new IllegalArgumentException("Checkpoints are only supported in streaming mode");
+        }
+        ProcessingMetrics metrics = new ProcessingMetrics();
+        // registering starts the platform MBean server, which takes a noticeable part of a second, so it is opt-in
+        boolean jmx = Boolean.parseBoolean(TransactionProcessorSample.option(args, "jmx"));
+        if (jmx) {
+            metrics.register();
+        }
+        try {
+            switch (mode) {
+                case "list" -> {
+                    List<Transaction> transactions = TransactionProcessorSample.readTransactions(Paths.get(args[1]), metrics);
+                    List<Event> events = TransactionProcessorSample.processTransactions(users, transactions, binTable, countryCodes, metrics);
+                    TransactionProcessorSample.writeEvents(Paths.get(args[4]), events, metrics);
+                }
+                case "streaming" -> {
+                    String checkpoint = TransactionProcessorSample.option(args, "checkpoint");
+                    String checkpointInterval = TransactionProcessorSample.option(args, "checkpoint-interval");
+                    TransactionProcessorSample.processTransactionsStreaming(users, Paths.get(args[1]), binTable, countryCodes, Paths.get(args[4]),
+                            checkpoint == null ? null : Path.of(checkpoint), checkpointInterval == null ? Checkpoint.DEFAULT_INTERVAL : Long.parseLong(checkpointInterval), metrics);
+                }
+                case "parallel" -> {
+                    String threads = TransactionProcessorSample.option(args, "threads");
+                    List<Transaction> transactions = TransactionProcessorSample.readTransactions(Paths.get(args[1]), metrics);
+                    ParallelTransactionProcessor processor = new ParallelTransactionProcessor(users, binTable, countryCodes, threads == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads), metrics);
+                    TransactionProcessorSample.writeEvents(Paths.get(args[4]), processor.process(transactions), metrics);
+                }
+                case "pipelined" -> new PipelinedTransactionProcessor(users, binTable, countryCodes, metrics).process(Paths.get(args[1]), Paths.get(args[4]));
+                case "service" -> {
+                    String port = TransactionProcessorSample.option(args, "port");
+                    TransactionService service = new TransactionService(users, binTable, countryCodes, metrics);
+                    // the transactions file is processed first, the service then continues from the state after it
+                    List<Transaction> transactions = TransactionProcessorSample.readTransactions(Paths.get(args[1]), metrics);
+                    TransactionProcessorSample.writeEvents(Paths.get(args[4]), service.process(transactions), metrics);
+                    service.start(port == null ? TransactionService.DEFAULT_PORT : Integer.parseInt(port));
+                    Thread mainThread = Thread.currentThread();
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        service.stop();
+                        // keep the JVM running until main has written the balances and the metrics
+                        try {
+                            mainThread.join();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }));
+                    System.err.println("Serving transactions on port " + service.port());
+                    service.awaitStop();
+                }
+                default -> throw new IllegalArgumentException("Unknown mode " + mode);
+            }
+
+            TransactionProcessorSample.writeBalances(Paths.get(args[3]), users);
+        } finally {
+            if (jmx) {
+                metrics.unregister();
+            }
+        }
+        metrics.finish();
+        String metricsPath = TransactionProcessorSample.option(args, "metrics");
+        if (metricsPath != null) {
+            metrics.writeSummary(Path.of(metricsPath));
+        }
+    }
+
+    // Returns the value of an optional "--name=value" argument given after the five file paths, or null if it is not given
+    private static String option(final String[] args, final String name) {
+        String prefix = "--" + name + "=";
+        for (int i = 5; i < args.length; i++) {
+            if (args[i].startsWith(prefix)) {
+                return args[i].substring(prefix.length());
+            }
+        }
+        return null;
     }
 
     // Read country codes from text file
-    private static Map<String, String> readCountryCodes(final Path filePath) {
-        Map<String, String> countryCodes = new HashMap<>();
+    static CountryTable readCountryCodes(final Path filePath) {
+        CountryTable countryCodes = new CountryTable();
         try (BufferedReader br = new BufferedReader(new FileReader(filePath.toString()))) {
             String line;
             while ((line = br.readLine()) != null) {
@@ -44,14 +181,12 @@ public class TransactionProcessorSample {
     }
 
     // Read users from csv file
-    private static List<User> readUsers(final Path filePath) {
+    static List<User> readUsers(final Path filePath) {
         List<User> users = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath.toString()))) {
-            String line;
-            br.readLine();
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(",");
-                users.add(new User(parts[0], parts[1], Double.parseDouble(parts[2]), parts[3], !Objects.equals(parts[4], "0"), Double.parseDouble(parts[5]), Double.parseDouble(parts[6]), Double.parseDouble(parts[7]), Double.parseDouble(parts[8])));
+        try (MappedCsvReader reader = new MappedCsvReader(filePath)) {
+            reader.nextRow();
+            while (reader.nextRow()) {
+                users.add(new User(reader.field(0), reader.field(1), reader.fieldAsAmount(2), reader.field(3), !Objects.equals(reader.field(4), "0"), reader.fieldAsAmount(5), reader.fieldAsAmount(6), reader.fieldAsAmount(7), reader.fieldAsAmount(8)));
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -61,14 +196,17 @@ public class TransactionProcessorSample {
     }
 
     // Read transactions from csv file
-    private static List<Transaction> readTransactions(final Path filePath) {
+    static List<Transaction> readTransactions(final Path filePath) {
+        return readTransactions(filePath, new ProcessingMetrics());
+    }
+
+    static List<Transaction> readTransactions(final Path filePath, final ProcessingMetrics metrics) {
         List<Transaction> transactions = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath.toString()))) {
-            String line;
-            br.readLine();
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(",");
-                transactions.add(new Transaction(parts[0], parts[1], parts[2], Double.parseDouble(parts[3]), parts[4], parts[5]));
+        try (MappedCsvReader reader = new MappedCsvReader(filePath)) {
+            reader.nextRow();
+            Transaction transaction;
+            while ((transaction = nextTransaction(reader, metrics)) != null) {
+                transactions.add(transaction);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -76,15 +214,30 @@ public class TransactionProcessorSample {
         return transactions;
     }
 
+    // Reads the next row of the reader as a transaction, null at the end of the file
+    static Transaction nextTransaction(final MappedCsvReader reader, final ProcessingMetrics metrics) throws IOException {
+        long start = metrics.start();
+        if (!reader.nextRow()) {
+            return null;
+        }
+        Transaction transaction = parseTransaction(reader);
+        metrics.stop(ProcessingMetrics.Stage.PARSE, start);
+        return transaction;
+    }
+
+    // Creates a transaction from the current row of the reader, the known types and methods are shared constants
+    static Transaction parseTransaction(final MappedCsvReader reader) {
+        return new Transaction(reader.field(0), reader.field(1), reader.field(2, "DEPOSIT", "WITHDRAW"), reader.fieldAsAmount(3), reader.field(4, "CARD", "TRANSFER"), reader.field(5),
+                reader.fieldIsExactAmount(3) ? null : reader.field(3));
+    }
+
     // Read bin mappings from csv file
-    private static List<BinMapping> readBinMappings(final Path filePath) {
+    static List<BinMapping> readBinMappings(final Path filePath) {
         List<BinMapping> binMappings = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath.toString()))) {
-            String line;
-            br.readLine();
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(",");
-                binMappings.add(new BinMapping(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3], parts[4]));
+        try (MappedCsvReader reader = new MappedCsvReader(filePath)) {
+            reader.nextRow();
+            while (reader.nextRow()) {
+                binMappings.add(new BinMapping(reader.field(0), reader.fieldAsLong(1), reader.fieldAsLong(2), reader.field(3, "DC", "CC"), reader.field(4)));
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -93,47 +246,122 @@ public class TransactionProcessorSample {
     }
 
     /**
-     * The first validation method to whether the user exist and is not frozen and whether the transaction is unique.
-     * Uses other validation methods and creates lists for events, approved transactions and processed transactions.
+     * Processes all transactions in memory and collects the event of every transaction.
      * @param users - list of users
      * @param transactions - list of transactions
-     * @param binMappings - list of bin mappings
-     * @param countryCodes - map of country codes
+     * @param binTable - bin ranges built from the bin mappings
+     * @param countryCodes - table of country codes
      * @return list of events
      */
-    private static List<Event> processTransactions(final List<User> users, final List<Transaction> transactions, final List<BinMapping> binMappings, final Map<String, String> countryCodes) {
-        List<Event> events = new ArrayList<>();
-        List<Transaction> approvedTransactions = new ArrayList<>();
-        List<Transaction> processedTransactions = new ArrayList<>();
+    static List<Event> processTransactions(final List<User> users, final List<Transaction> transactions, final BinTable binTable, final CountryTable countryCodes) {
+        return processTransactions(users, transactions, binTable, countryCodes, new ProcessingMetrics());
+    }
+
+    static List<Event> processTransactions(final List<User> users, final List<Transaction> transactions, final BinTable binTable, final CountryTable countryCodes,
+                                           final ProcessingMetrics metrics) {
+        List<Event> events = new ArrayList<>(transactions.size());
+        Ledger ledger = new Ledger(users);
         for (Transaction transaction : transactions) {
-            try {
-                // - Validate that the transaction ID is unique (not used before).
-                if (processedTransactions.stream().anyMatch(approvedTransaction -> approvedTransaction.transactionId.equals(transaction.transactionId))) {
-                    events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Transaction " + transaction.transactionId + " already processed (id non-unique)"));
-                    processedTransactions.add(transaction);
-                    continue;
-                }
-                // - Validate that the user exists and is not frozen.
-                if (users.stream().noneMatch(user -> user.userId.equals(transaction.userId))) {
-                    events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "User " + transaction.userId + " not found in Users"));
-                    processedTransactions.add(transaction);
-                    continue;
+            events.add(processTransaction(ledger, transaction, binTable, countryCodes, metrics));
+        }
+        return events;
+    }
+
+    /**
+     * Streaming variant of processTransactions: reads the transactions file one row at a time and writes the event of
+     * every transaction as soon as it is validated, so neither the transactions nor the events are kept in memory.
+     * Streaming processing can keep checkpoints. Every checkpointInterval transactions, and at the end, the ledger is saved
+     * to the checkpoint file with the position reached in the transactions file and the length of the events file.
+     * If the checkpoint file exists, processing resumes from it: the events written after the checkpoint are cut off
+     * and the transactions after its position are processed, so rows appended to the transactions file since the last
+     * run are the only ones processed and their events are appended to events.csv. A checkpoint is only resumed with
+     * the transactions file it was written for, see Checkpoint.
+     * @param checkpointPath - checkpoint file, null to process without checkpoints
+     */
+    static void processTransactionsStreaming(final List<User> users, final Path transactionsPath, final BinTable binTable, final CountryTable countryCodes, final Path eventsPath,
+                                             final Path checkpointPath, final long checkpointInterval, final ProcessingMetrics metrics) throws IOException {
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive, got " + checkpointInterval);
+        }
+        Ledger ledger = new Ledger(users);
+        Checkpoint checkpoint = checkpointPath != null && Files.exists(checkpointPath) ? Checkpoint.read(checkpointPath, ledger, transactionsPath) : null;
+        try (MappedCsvReader reader = new MappedCsvReader(transactionsPath);
+             EventWriter writer = checkpoint == null ? new EventWriter(eventsPath) : new EventWriter(eventsPath, checkpoint.eventsLength)) {
+            // checkpoints are only taken after rows that end with a line break, rows appended later may continue the
+            // last row, so a checkpoint before it reads it again on resume
+            boolean terminated;
+            if (checkpoint == null) {
+                reader.nextRow();
+                terminated = reader.rowEndsWithLineBreak();
+            } else {
+                reader.seek(checkpoint.transactionsOffset);
+                terminated = true;
+            }
+            long rows = 0;
+            Transaction transaction;
+            while ((transaction = nextTransaction(reader, metrics)) != null) {
+                terminated = reader.rowEndsWithLineBreak();
+                if (checkpointPath != null && !terminated) {
+                    writer.sync();
+                    Checkpoint.write(checkpointPath, ledger, transactionsPath, reader.rowOffset(), writer.length());
                 }
-                if (users.stream().anyMatch(user -> user.userId.equals(transaction.userId) && user.frozen)) {
-                    events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "User " + transaction.userId + " is frozen"));
-                    processedTransactions.add(transaction);
-                    continue;
+                Event event = processTransaction(ledger, transaction, binTable, countryCodes, metrics);
+                long start = metrics.start();
+                writer.write(event);
+                metrics.stop(ProcessingMetrics.Stage.WRITE, start);
+                if (checkpointPath != null && terminated && ++rows % checkpointInterval == 0) {
+                    writer.sync();
+                    Checkpoint.write(checkpointPath, ledger, transactionsPath, reader.offset(), writer.length());
                 }
-                User user = users.stream().filter(u -> u.userId.equals(transaction.userId)).findFirst().get();
-                // - Validate the transaction amount and type
-                amountAndTypeValidation(events, approvedTransactions, processedTransactions, transaction, user, binMappings, countryCodes);
-            } catch (Exception e) {
-                // - In case of unexpected errors with processing transactions, skip the transaction. Do not interrupt processing of the remaining transactions
-                events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Error processing transaction " + transaction.transactionId));
-                processedTransactions.add(transaction);
+            }
+            if (checkpointPath != null && terminated) {
+                writer.sync();
+                Checkpoint.write(checkpointPath, ledger, transactionsPath, reader.offset(), writer.length());
             }
         }
-        return events;
+    }
+
+    /**
+     * Validates the transaction and counts its event in the metrics.
+     * @return the event of the transaction
+     */
+    static Event processTransaction(final Ledger ledger, final Transaction transaction, final BinTable binTable, final CountryTable countryCodes, final ProcessingMetrics metrics) {
+        long start = metrics.start();
+        Event event = validateTransaction(ledger, transaction, binTable, countryCodes, metrics);
+        metrics.stop(ProcessingMetrics.Stage.VALIDATION, start);
+        metrics.count(event.reason);
+        return event;
+    }
+
+    /**
+     * The first validation method to whether the user exist and is not frozen and whether the transaction is unique.
+     * Uses other validation methods and the ledger that indexes processed transaction ids, users and approved accounts.
+     * @return the event of the transaction
+     */
+    private static Event validateTransaction(final Ledger ledger, final Transaction transaction, final BinTable binTable, final CountryTable countryCodes, final ProcessingMetrics metrics) {
+        try {
+            // - Validate that the transaction ID is unique (not used before).
+            if (ledger.isProcessed(transaction.transactionId)) {
+                ledger.markProcessed(transaction.transactionId);
+                return new Event(transaction.transactionId, EventReason.DUPLICATE_TRANSACTION);
+            }
+            // - Validate that the user exists and is not frozen.
+            User user = ledger.getUser(transaction.userId);
+            if (user == null) {
+                ledger.markProcessed(transaction.transactionId);
+                return new Event(transaction.transactionId, EventReason.USER_NOT_FOUND, transaction.userId);
+            }
+            if (ledger.isFrozen(transaction.userId)) {
+                ledger.markProcessed(transaction.transactionId);
+                return new Event(transaction.transactionId, EventReason.USER_FROZEN, transaction.userId);
+            }
+            // - Validate the transaction amount and type
+            return amountAndTypeValidation(ledger, transaction, user, binTable, countryCodes, metrics);
+        } catch (Exception e) {
+            // - In case of unexpected errors with processing transactions, skip the transaction. Do not interrupt processing of the remaining transactions
+            ledger.markProcessed(transaction.transactionId);
+            return new Event(transaction.transactionId, EventReason.PROCESSING_ERROR);
+        }
     }
 
 
@@ -143,199 +371,186 @@ public class TransactionProcessorSample {
      * Checks if the user has enough balance for a withdrawal.
      * Checks if the account has been used for a deposit before a withdrawal.
      */
-    private static void amountAndTypeValidation(List<Event> events, List<Transaction> approvedTransactions, List<Transaction> processedTransactions, Transaction transaction, User user, List<BinMapping> binMappings, Map<String, String> countryCodes) {
-        Locale.setDefault(Locale.US);
-
+    private static Event amountAndTypeValidation(Ledger ledger, Transaction transaction, User user, BinTable binTable, CountryTable countryCodes, ProcessingMetrics metrics) {
+        // - Amounts that do not fit in a balance are declined before any check compares them
+        if (transaction.exactAmount != null && !Money.isInRange(transaction.exactAmount)) {
+            ledger.markProcessed(transaction.transactionId);
+            return new Event(transaction.transactionId, EventReason.AMOUNT_OUT_OF_RANGE, transaction.exactAmount);
+        }
         // - Validate the transaction amount is positive
-        if (transaction.amount <= 0) {
-            events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Amount " + String.format("%.2f", transaction.amount) + " is invalid"));
-            processedTransactions.add(transaction);
-            return;
+        if (transaction.compareAmountTo(0) <= 0) {
+            ledger.markProcessed(transaction.transactionId);
+            return new Event(transaction.transactionId, EventReason.INVALID_AMOUNT, transaction.amount);
         }
         // - Validate the transaction type and amount
         if (transaction.type.equals("DEPOSIT")) {
-            if (transaction.amount < user.minDeposit) {
-                events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Amount " + String.format("%.2f", transaction.amount) + " is under the deposit limit of " + String.format("%.2f", user.minDeposit)));
-                processedTransactions.add(transaction);
-                return;
-            } else if (transaction.amount > user.maxDeposit) {
-                events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Amount " + String.format("%.2f", transaction.amount) + " is over the deposit limit of " + String.format("%.2f", user.maxDeposit)));
-                processedTransactions.add(transaction);
-                return;
+            if (transaction.compareAmountTo(user.minDeposit) < 0) {
+                ledger.markProcessed(transaction.transactionId);
+                return new Event(transaction.transactionId, EventReason.UNDER_DEPOSIT_LIMIT, transaction.amount, user.minDeposit);
+            } else if (transaction.compareAmountTo(user.maxDeposit) > 0) {
+                ledger.markProcessed(transaction.transactionId);
+                return new Event(transaction.transactionId, EventReason.OVER_DEPOSIT_LIMIT, transaction.amount, user.maxDeposit);
             }
         } else if (transaction.type.equals("WITHDRAW")) {
-            if (transaction.amount < user.minWithdraw) {
-                events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Amount " + String.format("%.2f", transaction.amount) + " is under the withdraw limit of " + String.format("%.2f", user.minWithdraw)));
-                processedTransactions.add(transaction);
-                return;
-            } else if (transaction.amount > user.maxWithdraw) {
-                events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Amount " + String.format("%.2f", transaction.amount) + " is over the withdraw limit of " + String.format("%.2f", user.maxWithdraw)));
-                processedTransactions.add(transaction);
-                return;
+            if (transaction.compareAmountTo(user.minWithdraw) < 0) {
+                ledger.markProcessed(transaction.transactionId);
+                return new Event(transaction.transactionId, EventReason.UNDER_WITHDRAW_LIMIT, transaction.amount, user.minWithdraw);
+            } else if (transaction.compareAmountTo(user.maxWithdraw) > 0) {
+                ledger.markProcessed(transaction.transactionId);
+                return new Event(transaction.transactionId, EventReason.OVER_WITHDRAW_LIMIT, transaction.amount, user.maxWithdraw);
             }
             // - For withdrawals, validate that the user has a sufficient balance for a withdrawal.
-            if (transaction.amount > user.balance) {
-                events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Not enough balance for withdrawal " + String.format("%.2f", transaction.amount) + " - balance is too low at " + String.format("%.2f", user.getBalance())));
-                processedTransactions.add(transaction);
-                return;
+            if (transaction.compareAmountTo(user.balance) > 0) {
+                ledger.markProcessed(transaction.transactionId);
+                return new Event(transaction.transactionId, EventReason.INSUFFICIENT_BALANCE, transaction.amount, user.getBalance());
             }
             // - Allow withdrawals only with the same payment account that has previously been successfully used for deposit
-            // no need to check for approved transaction type as only deposit transactions are approved with the same account number before withdraw
-            if (approvedTransactions.stream().noneMatch(approvedTransaction -> approvedTransaction.accountNumber.equals(transaction.accountNumber))) {
-                events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Cannot withdraw with a new account " + transaction.accountNumber));
-                processedTransactions.add(transaction);
-                return;
+            // no need to check the owner here, an account used by another user is declined later in validateAccountIsUsedByOneUser
+            if (!ledger.isAccountApproved(transaction.accountNumber)) {
+                ledger.markProcessed(transaction.transactionId);
+                return new Event(transaction.transactionId, EventReason.NEW_WITHDRAW_ACCOUNT, transaction.accountNumber);
             }
         }
         // - Transaction type that isn't deposit or withdrawal should be declined
         else {
-            events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Type " + transaction.type + " is not supported"));
-            processedTransactions.add(transaction);
-            return;
+            ledger.markProcessed(transaction.transactionId);
+            return new Event(transaction.transactionId, EventReason.UNSUPPORTED_TYPE, transaction.type);
+        }
+        // - Balances are kept in whole cents, so an amount with a part below a cent is declined once it is within the limits
+        if (transaction.exactAmount != null) {
+            ledger.markProcessed(transaction.transactionId);
+            return new Event(transaction.transactionId, EventReason.SUB_CENT_AMOUNT, transaction.exactAmount);
         }
         // - Validate payment method:
         if (transaction.method.equals("TRANSFER")) {
-            transferValidation(events, processedTransactions, transaction, user, approvedTransactions);
+            return transferValidation(ledger, transaction, user, metrics);
         } else if (transaction.method.equals("CARD")) {
-            cardValidation(binMappings, countryCodes, transaction, events, processedTransactions, user, approvedTransactions);
+            return cardValidation(binTable, countryCodes, transaction, ledger, user, metrics);
         } else {
-            events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Method " + transaction.method + " is not supported"));
+            return new Event(transaction.transactionId, EventReason.UNSUPPORTED_METHOD, transaction.method);
         }
     }
 
 
     /**
      * Third validation method to validate that the account used for the transaction is used by only one user.
-     * If the transaction passes all the validations, the transaction is approved and added to the approvedTransactions list.
+     * If the transaction passes all the validations, the transaction is approved and its account is recorded in the ledger.
      * The user's balance is updated accordingly.
      */
-    private static void validateAccountIsUsedByOneUser(List<Event> events, List<Transaction> approvedTransactions, List<Transaction> processedTransactions, Transaction transaction, User user) {
+    private static Event validateAccountIsUsedByOneUser(Ledger ledger, Transaction transaction, User user) {
         String accountNumber = transaction.accountNumber;
-        if (approvedTransactions.stream().anyMatch(approvedTransaction -> approvedTransaction.accountNumber.equals(accountNumber) && !approvedTransaction.userId.equals(transaction.userId))) {
-            events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Account " + accountNumber + " is in use by another user"));
-            processedTransactions.add(transaction);
-            return;
+        if (ledger.isAccountUsedByAnotherUser(accountNumber, transaction.userId)) {
+            ledger.markProcessed(transaction.transactionId);
+            return new Event(transaction.transactionId, EventReason.ACCOUNT_IN_USE, accountNumber);
         }
-        events.add(new Event(transaction.transactionId, Event.STATUS_APPROVED, "OK"));
-        processedTransactions.add(transaction);
+        ledger.markProcessed(transaction.transactionId);
+        // an overflowing balance fails the transaction, validateTransaction declines it with an error
         if (transaction.type.equals("DEPOSIT")) {
-            user.balance += transaction.amount;
+            user.balance = Math.addExact(user.balance, transaction.amount);
         }
         if (transaction.type.equals("WITHDRAW")) {
-            user.balance -= transaction.amount;
+            user.balance = Math.subtractExact(user.balance, transaction.amount);
         }
-        approvedTransactions.add(transaction);
+        ledger.approveAccount(accountNumber, transaction.userId);
+        return new Event(transaction.transactionId, EventReason.APPROVED);
     }
 
     /**
      * Validation method for method type transfer.
-     * Uses the isIbanValid method to validate the IBAN number and validates the country of the account used for the transaction matches the user's country.
+     * Uses Iban.isValid to validate the IBAN number and validates the country of the account used for the transaction matches the user's country.
      */
-    private static void transferValidation(List<Event> events, List<Transaction> processedTransactions, Transaction transaction, User user, List<Transaction> approvedTransactions) {
+    private static Event transferValidation(Ledger ledger, Transaction transaction, User user, ProcessingMetrics metrics) {
         String iban = transaction.accountNumber;
-        if (iban.length() > 34) {
-            events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Invalid iban " + transaction.accountNumber));
-            processedTransactions.add(transaction);
-            return;
-        }
-        boolean isValid = isIbanValid(iban);
-        if (!isValid) {
-            events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Invalid iban " + transaction.accountNumber));
-            processedTransactions.add(transaction);
-            return;
+        long start = metrics.start();
+        boolean valid = Iban.isValid(iban);
+        metrics.stop(ProcessingMetrics.Stage.IBAN, start);
+        if (!valid) {
+            ledger.markProcessed(transaction.transactionId);
+            return new Event(transaction.transactionId, EventReason.INVALID_IBAN, transaction.accountNumber);
         }
         // - Confirm that the country of the card or account used for the transaction matches the user's country
         if (!user.country.equals(iban.substring(0, 2))) {
-            events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Country of the account used for the transaction doesn't match the user's country, expected " + user.country));
-            processedTransactions.add(transaction);
-            return;
+            ledger.markProcessed(transaction.transactionId);
+            return new Event(transaction.transactionId, EventReason.ACCOUNT_COUNTRY_MISMATCH, user.country);
         }
         // - Users cannot share iban/card; payment account used by one user can no longer be used by another
-        validateAccountIsUsedByOneUser(events, approvedTransactions, processedTransactions, transaction, user);
+        return validateAccountIsUsedByOneUser(ledger, transaction, user);
     }
 
     /**
      * Validation method for method type card.
-     * Uses the binMappings to validate the card type.
+     * Uses the bin table to validate the card type.
      * Checks if the country of the card or account used for the transaction matches the user's country using the countryCodes map.
      */
-    private static void cardValidation(List<BinMapping> binMappings, Map<String, String> countryCodes, Transaction transaction, List<Event> events, List<Transaction> processedTransactions, User user, List<Transaction> approvedTransactions) {
-        String accountNumber = transaction.accountNumber;
-        long number = Long.parseLong(accountNumber.substring(0, 10));
-        for (BinMapping binMapping : binMappings) {
-            if (number >= binMapping.rangeFrom && number <= binMapping.rangeTo) {
-                // validate that card type=DC
-                if (!binMapping.type.equals("DC")) {
-                    events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Only DC cards allowed. Got " + binMapping.type + " card type."));
-                    processedTransactions.add(transaction);
-                    return;
-                }
-                // - Confirm that the country of the card or account used for the transaction matches the user's country
-                String binCountryCode = binMapping.country;
-                if (!binCountryCode.equals(countryCodes.get(user.country))) {
-                    events.add(new Event(transaction.transactionId, Event.STATUS_DECLINED, "Country of the card used for the transaction doesn't match the user's country, expected " + user.country));
-                    processedTransactions.add(transaction);
-                    return;
-                }
+    private static Event cardValidation(BinTable binTable, CountryTable countryCodes, Transaction transaction, Ledger ledger, User user, ProcessingMetrics metrics) {
+        long start = metrics.start();
+        int range = binTable.find(BinTable.cardPrefix(transaction.accountNumber));
+        metrics.stop(ProcessingMetrics.Stage.BIN, start);
+        if (range >= 0) {
+            // - Confirm that the country of the card or account used for the transaction matches the user's country
+            if (!binTable.matchesCountry(range, countryCodes.get(user.country))) {
+                ledger.markProcessed(transaction.transactionId);
+                return new Event(transaction.transactionId, EventReason.CARD_COUNTRY_MISMATCH, user.country);
+            }
+            // validate that card type=DC
+            String nonDebitType = binTable.nonDebitType(range);
+            if (nonDebitType != null) {
+                ledger.markProcessed(transaction.transactionId);
+                return new Event(transaction.transactionId, EventReason.CARD_NOT_DEBIT, nonDebitType);
             }
         }
         // - Users cannot share iban/card; payment account used by one user can no longer be used by another
-        validateAccountIsUsedByOneUser(events, approvedTransactions, processedTransactions, transaction, user);
+        return validateAccountIsUsedByOneUser(ledger, transaction, user);
     }
 
-    //Validate the IBAN number. Uses algorithm from given Wikipedia page to validate the IBAN number.
-    private static boolean isIbanValid(String iban) {
-        String rearrangedIban = iban.substring(4) + iban.substring(0, 4);
-        StringBuilder expandedIban = new StringBuilder();
-        for (char ch : rearrangedIban.toCharArray()) {
-            if (Character.isLetter(ch)) {
-                int numericValue = Character.toUpperCase(ch) - 'A' + 10;
-                expandedIban.append(numericValue);
-            } else {
-                expandedIban.append(ch);
-            }
+    // Writes the new balances of the users to a csv file
+    static void writeBalances(final Path filePath, final List<User> users) throws IOException {
+        try (final BufferedWriter writer = new BufferedWriter(new FileWriter(filePath.toFile(), false))) {
+            writeBalances(writer, users);
         }
-        // validate the transfer account number's check digit validity
-        BigInteger bigInteger = new BigInteger(expandedIban.toString());
-        return bigInteger.mod(BigInteger.valueOf(97)).intValue() == 1;
     }
 
-    // Writes the new balances of the users to a csv file
-    private static void writeBalances(final Path filePath, final List<User> users) throws IOException {
-        Locale.setDefault(Locale.US);
-        try (final FileWriter writer = new FileWriter(filePath.toFile(), false)) {
-            writer.append("user_id,balance\n");
-            DecimalFormat df = new DecimalFormat("#0.00"); // Format to ensure at least two decimal places
-            for (User user : users) {
-                writer.append(user.userId).append(",").append(df.format(user.balance)).append("\n");
-            }
+    static void writeBalances(final Writer writer, final List<User> users) throws IOException {
+        writer.append("user_id,balance\n");
+        StringBuilder line = new StringBuilder();
+        for (User user : users) {
+            line.setLength(0);
+            line.append(user.userId).append(',');
+            Money.appendTo(line, user.balance);
+            writer.append(line).append('\n');
         }
     }
 
     // Writes the events to a csv file
-    private static void writeEvents(final Path filePath, final List<Event> events) throws IOException {
-        try (final FileWriter writer = new FileWriter(filePath.toFile(), false)) {
-            writer.append("transaction_id,status,message\n");
+    static void writeEvents(final Path filePath, final List<Event> events) throws IOException {
+        writeEvents(filePath, events, new ProcessingMetrics());
+    }
+
+    static void writeEvents(final Path filePath, final List<Event> events, final ProcessingMetrics metrics) throws IOException {
+        try (final EventWriter writer = new EventWriter(filePath)) {
             for (final var event : events) {
-                writer.append(event.transactionId).append(",").append(event.status).append(",").append(event.message).append("\n");
+                long start = metrics.start();
+                writer.write(event);
+                metrics.stop(ProcessingMetrics.Stage.WRITE, start);
             }
         }
     }
 }
 
 
+// Money amounts are held in cents, see Money
 class User {
     public String userId;
     public String username;
-    public double balance;
+    public long balance;
     public String country;
     public boolean frozen;
-    public double minDeposit;
-    public double maxDeposit;
-    public double minWithdraw;
-    public double maxWithdraw;
+    public long minDeposit;
+    public long maxDeposit;
+    public long minWithdraw;
+    public long maxWithdraw;
 
-    public User(String userId, String username, double balance, String coutry, boolean frozen, double minDeposit, double maxDeposit, double minWithdraw, double maxWithdraw) {
+    public User(String userId, String username, long balance, String coutry, boolean frozen, long minDeposit, long maxDeposit, long minWithdraw, long maxWithdraw) {
         this.userId = userId;
         this.username = username;
         this.balance = balance;
@@ -347,64 +562,3124 @@ class User {
         this.maxWithdraw = maxWithdraw;
     }
 
-    public double getBalance() {
+    public long getBalance() {
         return balance;
     }
 
-    public void setBalance(double balance) {
+    public void setBalance(long balance) {
         this.balance = balance;
     }
 }
 
-class Transaction {
-    public String transactionId;
-    public String userId;
-    public String type;
-    public double amount;
-    public String method;
-    public String accountNumber;
+/**
+ * In-memory ledger of the processing state, indexed so that every validation step is a constant time lookup.
+ * Holds the ids of processed transactions, the users by id and the owner of every successfully used account.
+ */
+class Ledger {
+    // a concurrent ledger splits its id and account stores into this many separately locked parts
+    private static final int CONCURRENT_STRIPES = 64;
 
-    public Transaction(String transactionId, String userId, String type, double amount, String method, String accountNumber) {
-        this.transactionId = transactionId;
-        this.userId = userId;
-        this.type = type;
-        this.amount = amount;
-        this.method = method;
-        this.accountNumber = accountNumber;
+    private final List<User> users;
+    private final TransactionIdSet processedTransactionIds;
+    // user id -> index of the first user with that id in users, not changed after creation
+    private final InternTable userIndexes = new InternTable(1, false);
+    // by the index of the first user with an id: whether any user with that id is frozen
+    private final boolean[] frozen;
+    // account number -> index of the user whose transaction was first approved with it
+    private final InternTable accountOwners;
+
+    public Ledger(List<User> users) {
+        this(users, false);
     }
-}
 
-class BinMapping {
-    public String name;
-    public long rangeFrom;
-    public long rangeTo;
-    public String type;
-    public String country;
+    // A concurrent ledger can be updated from several threads, the users and frozen ids are only read after creation
+    public Ledger(List<User> users, boolean concurrent) {
+        this.users = users;
+        int stripes = concurrent ? CONCURRENT_STRIPES : 1;
+        processedTransactionIds = new TransactionIdSet(stripes, concurrent);
+        accountOwners = new InternTable(stripes, concurrent);
+        frozen = new boolean[users.size()];
+        for (int i = 0; i < users.size(); i++) {
+            User user = users.get(i);
+            // keep the first user with a given id, like the previous list search did
+            userIndexes.putIfAbsent(user.userId, i);
+            if (user.frozen) {
+                frozen[userIndexes.get(user.userId)] = true;
+            }
+        }
+    }
 
-    public BinMapping(String name, long rangeFrom, long rangeTo, String type, String country) {
-        this.name = name;
-        this.rangeFrom = rangeFrom;
-        this.rangeTo = rangeTo;
-        this.type = type;
-        this.country = country;
+    public boolean isProcessed(String transactionId) {
+        return processedTransactionIds.contains(transactionId);
     }
 
-    public String getName() {
-        return name;
+    public void markProcessed(String transactionId) {
+        processedTransactionIds.add(transactionId);
+    }
+
+    public User getUser(String userId) {
+        int index = userIndexes.get(userId);
+        return index == InternTable.ABSENT ? null : users.get(index);
+    }
+
+    public boolean isFrozen(String userId) {
+        int index = userIndexes.get(userId);
+        return index != InternTable.ABSENT && frozen[index];
+    }
+
+    // An account is approved once any transaction using it has been approved.
+    // The first approval of an account is always a deposit, as withdrawals need an approved account.
+    public boolean isAccountApproved(String accountNumber) {
+        return accountOwners.get(accountNumber) != InternTable.ABSENT;
+    }
+
+    public boolean isAccountUsedByAnotherUser(String accountNumber, String userId) {
+        int owner = accountOwners.get(accountNumber);
+        return owner != InternTable.ABSENT && owner != userIndexes.get(userId);
+    }
+
+    // Only called for transactions of known users
+    public void approveAccount(String accountNumber, String userId) {
+        accountOwners.putIfAbsent(accountNumber, userIndexes.get(userId));
+    }
+
+    // The same checks for ids and accounts given as slices of ASCII bytes and users given by index, see TransactionBatch
+
+    public boolean isProcessed(byte[] bytes, int start, int length) {
+        return processedTransactionIds.contains(bytes, start, length);
+    }
+
+    public void markProcessed(byte[] bytes, int start, int length) {
+        processedTransactionIds.add(bytes, start, length);
+    }
+
+    // Index of the first user with the id, or InternTable.ABSENT, can be called from any thread
+    public int userIndex(byte[] bytes, int start, int length) {
+        return userIndexes.get(bytes, start, length);
+    }
+
+    public User user(int index) {
+        return users.get(index);
+    }
+
+    public boolean isFrozen(int userIndex) {
+        return frozen[userIndex];
+    }
+
+    public boolean isAccountApproved(byte[] bytes, int start, int length) {
+        return accountOwners.get(bytes, start, length) != InternTable.ABSENT;
+    }
+
+    public boolean isAccountUsedByAnotherUser(byte[] bytes, int start, int length, int userIndex) {
+        int owner = accountOwners.get(bytes, start, length);
+        return owner != InternTable.ABSENT && owner != userIndex;
+    }
+
+    public void approveAccount(byte[] bytes, int start, int length, int userIndex) {
+        accountOwners.putIfAbsent(bytes, start, length, userIndex);
+    }
+
+    // Writes the user balances, processed transaction ids and account owners
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(users.size());
+        for (User user : users) {
+            out.writeUTF(user.userId);
+            out.writeLong(user.balance);
+        }
+        processedTransactionIds.writeTo(out);
+        accountOwners.writeTo(out);
+    }
+
+    // Restores the state written by writeTo, the users must be the same as when it was written
+    public void readFrom(DataInputStream in) throws IOException {
+        int userCount = in.readInt();
+        if (userCount != users.size()) {
+            throw new IOException("Checkpoint has " + userCount + " users, the users file has " + users.size());
+        }
+        for (User user : users) {
+            String userId = in.readUTF();
+            if (!userId.equals(user.userId)) {
+                throw new IOException("Checkpoint has user " + userId + " where the users file has " + user.userId);
+            }
+            user.balance = in.readLong();
+        }
+        processedTransactionIds.readFrom(in);
+        accountOwners.readFrom(in, users.size());
     }
 }
 
-class Event {
-    public static final String STATUS_DECLINED = "DECLINED";
-    public static final String STATUS_APPROVED = "APPROVED";
+/**
+ * Set of transaction ids that keeps no String per id. Ids in the canonical lowercase UUID form are parsed into their
+ * 128 bits, other ids of up to 16 ASCII characters are packed into two longs, both kinds are kept in open addressing
+ * LongPairSets, about 23 bytes per id instead of over 150 for a String in a HashSet. Anything else, like non ASCII or
+ * uppercase UUID ids, is kept as a String, so every id keeps its exact spelling.
+ * A concurrent set splits the ids over stripes picked by their hash, each stripe is locked on its own.
+ */
+class TransactionIdSet {
+    private static final int UUID_LENGTH = 36;
+    private static final int PACKED_MAX_LENGTH = 16;
 
-    public String transactionId;
-    public String status;
-    public String message;
+    private final boolean concurrent;
+    private final LongPairSet[] uuids;
+    private final LongPairSet[] packed;
+    private final Set<String> others;
+    // the two longs of the last parsed id, only used by the calling thread between parse and the set access
+    private final ThreadLocal<long[]> scratch;
+    private final long[] sequentialScratch = new long[2];
 
-    public Event(String transactionId, String status, String message) {
-        this.transactionId = transactionId;
-        this.status = status;
-        this.message = message;
+    public TransactionIdSet(int stripes, boolean concurrent) {
+        if (Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("Stripes must be a power of two: " + stripes);
+        }
+        this.concurrent = concurrent;
+        uuids = new LongPairSet[stripes];
+        packed = new LongPairSet[stripes];
+        for (int i = 0; i < stripes; i++) {
+            uuids[i] = new LongPairSet();
+            packed[i] = new LongPairSet();
+        }
+        others = concurrent ? ConcurrentHashMap.newKeySet() : new HashSet<>();
+        scratch = concurrent ? ThreadLocal.withInitial(() -> new long[2]) : null;
+    }
+
+    public boolean contains(String id) {
+        long[] key = concurrent ? scratch.get() : sequentialScratch;
+        LongPairSet[] sets = setsFor(id, key);
+        if (sets == null) {
+            return others.contains(id);
+        }
+        LongPairSet set = stripe(sets, key[0], key[1]);
+        if (!concurrent) {
+            return set.contains(key[0], key[1]);
+        }
+        synchronized (set) {
+            return set.contains(key[0], key[1]);
+        }
+    }
+
+    public void add(String id) {
+        long[] key = concurrent ? scratch.get() : sequentialScratch;
+        LongPairSet[] sets = setsFor(id, key);
+        if (sets == null) {
+            others.add(id);
+        } else {
+            add(sets, key[0], key[1]);
+        }
+    }
+
+    // The same for an id given as a slice of ASCII bytes, which is the same id as the String of those characters
+    public boolean contains(byte[] bytes, int start, int length) {
+        long[] key = concurrent ? scratch.get() : sequentialScratch;
+        LongPairSet[] sets = setsFor(bytes, start, length, key);
+        if (sets == null) {
+            return others.contains(new String(bytes, start, length, StandardCharsets.ISO_8859_1));
+        }
+        LongPairSet set = stripe(sets, key[0], key[1]);
+        if (!concurrent) {
+            return set.contains(key[0], key[1]);
+        }
+        synchronized (set) {
+            return set.contains(key[0], key[1]);
+        }
+    }
+
+    public void add(byte[] bytes, int start, int length) {
+        long[] key = concurrent ? scratch.get() : sequentialScratch;
+        LongPairSet[] sets = setsFor(bytes, start, length, key);
+        if (sets == null) {
+            others.add(new String(bytes, start, length, StandardCharsets.ISO_8859_1));
+        } else {
+            add(sets, key[0], key[1]);
+        }
+    }
+
+    // Layout: UUID count and pairs, packed id count and pairs, then the count and strings of the other ids
+    public void writeTo(DataOutputStream out) throws IOException {
+        writeTo(out, uuids);
+        writeTo(out, packed);
+        out.writeInt(others.size());
+        for (String id : others) {
+            out.writeUTF(id);
+        }
+    }
+
+    public void readFrom(DataInputStream in) throws IOException {
+        readFrom(in, uuids);
+        readFrom(in, packed);
+        for (int i = in.readInt(); i > 0; i--) {
+            others.add(in.readUTF());
+        }
+    }
+
+    // Puts the two longs of the id into key and returns the sets for its kind, or null when it is kept as a String
+    private LongPairSet[] setsFor(String id, long[] key) {
+        int length = id.length();
+        if (length == UUID_LENGTH && parseUuid(id, key)) {
+            return uuids;
+        }
+        if (length > 0 && length <= PACKED_MAX_LENGTH && pack(id, key)) {
+            return packed;
+        }
+        return null;
+    }
+
+    private LongPairSet[] setsFor(byte[] bytes, int start, int length, long[] key) {
+        if (length == UUID_LENGTH && parseUuid(bytes, start, key)) {
+            return uuids;
+        }
+        if (length > 0 && length <= PACKED_MAX_LENGTH && pack(bytes, start, length, key)) {
+            return packed;
+        }
+        return null;
+    }
+
+    // Accepts only 8-4-4-4-12 lowercase hex digits, the one spelling that maps back to the same string
+    private static boolean parseUuid(String id, long[] key) {
+        long high = 0;
+        long low = 0;
+        int digits = 0;
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            char c = id.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+                continue;
+            }
+            int digit = hexDigit(c);
+            if (digit < 0) {
+                return false;
+            }
+            if (digits++ < 16) {
+                high = high << 4 | digit;
+            } else {
+                low = low << 4 | digit;
+            }
+        }
+        key[0] = high;
+        key[1] = low;
+        return true;
+    }
+
+    private static boolean parseUuid(byte[] bytes, int start, long[] key) {
+        long high = 0;
+        long low = 0;
+        int digits = 0;
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            byte c = bytes[start + i];
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+                continue;
+            }
+            int digit = hexDigit(c);
+            if (digit < 0) {
+                return false;
+            }
+            if (digits++ < 16) {
+                high = high << 4 | digit;
+            } else {
+                low = low << 4 | digit;
+            }
+        }
+        key[0] = high;
+        key[1] = low;
+        return true;
+    }
+
+    // Lowercase hex digits only, -1 for anything else
+    private static int hexDigit(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    // Packs the characters into bytes padded with zeros, no character may be zero so the padding is unambiguous
+    private static boolean pack(String id, long[] key) {
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < PACKED_MAX_LENGTH; i++) {
+            long c = 0;
+            if (i < id.length()) {
+                c = id.charAt(i);
+                if (c == 0 || c > 0x7F) {
+                    return false;
+                }
+            }
+            if (i < 8) {
+                high = high << 8 | c;
+            } else {
+                low = low << 8 | c;
+            }
+        }
+        key[0] = high;
+        key[1] = low;
+        return true;
+    }
+
+    private static boolean pack(byte[] bytes, int start, int length, long[] key) {
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < PACKED_MAX_LENGTH; i++) {
+            long c = 0;
+            if (i < length) {
+                c = bytes[start + i];
+                if (c <= 0) {
+                    return false;
+                }
+            }
+            if (i < 8) {
+                high = high << 8 | c;
+            } else {
+                low = low << 8 | c;
+            }
+        }
+        key[0] = high;
+        key[1] = low;
+        return true;
+    }
+
+    private void add(LongPairSet[] sets, long high, long low) {
+        LongPairSet set = stripe(sets, high, low);
+        if (!concurrent) {
+            set.add(high, low);
+            return;
+        }
+        synchronized (set) {
+            set.add(high, low);
+        }
+    }
+
+    private static LongPairSet stripe(LongPairSet[] sets, long high, long low) {
+        return sets[(int) (LongPairSet.hash(high, low) >>> 48) & (sets.length - 1)];
+    }
+
+    private static long size(LongPairSet[] sets) {
+        long size = 0;
+        for (LongPairSet set : sets) {
+            size += set.size();
+        }
+        return size;
+    }
+
+    private static void writeTo(DataOutputStream out, LongPairSet[] sets) throws IOException {
+        out.writeLong(size(sets));
+        for (LongPairSet set : sets) {
+            set.writePairs(out);
+        }
     }
-}
\ No newline at end of file
+
+    private void readFrom(DataInputStream in, LongPairSet[] sets) throws IOException {
+        for (long i = in.readLong(); i > 0; i--) {
+            add(sets, in.readLong(), in.readLong());
+        }
+    }
+}
+
+/**
+ * Open addressing hash set of 128 bit keys, each kept as two longs next to each other in one long[] and found by
+ * linear probing. An all zero pair marks a free slot, so the zero key is tracked by a flag of its own.
+ * Not thread safe.
+ */
+class LongPairSet {
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final int MAX_CAPACITY = 1 << 29;
+
+    // high long of slot i at 2 * i, low long at 2 * i + 1
+    private long[] keys = new long[2 * INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    private int size;
+    private boolean containsZero;
+
+    // The low bits pick the slot, callers splitting keys over several sets should pick the set by the high bits
+    public static long hash(long high, long low) {
+        long h = (high ^ Long.rotateLeft(low, 32)) * 0x9E3779B97F4A7C15L;
+        return h ^ h >>> 29;
+    }
+
+    public boolean contains(long high, long low) {
+        if (high == 0 && low == 0) {
+            return containsZero;
+        }
+        for (int slot = slot(high, low); ; slot = (slot + 1) & mask) {
+            long slotHigh = keys[2 * slot];
+            long slotLow = keys[2 * slot + 1];
+            if (slotHigh == high && slotLow == low) {
+                return true;
+            }
+            if (slotHigh == 0 && slotLow == 0) {
+                return false;
+            }
+        }
+    }
+
+    // Returns false when the key was already in the set
+    public boolean add(long high, long low) {
+        if (high == 0 && low == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int slot = slot(high, low);
+        while (true) {
+            long slotHigh = keys[2 * slot];
+            long slotLow = keys[2 * slot + 1];
+            if (slotHigh == high && slotLow == low) {
+                return false;
+            }
+            if (slotHigh == 0 && slotLow == 0) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[2 * slot] = high;
+        keys[2 * slot + 1] = low;
+        // grow at a load factor of 0.75
+        if (++size > (mask + 1) - ((mask + 1) >>> 2)) {
+            grow();
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Writes the high and low long of every key, in no particular order
+    public void writePairs(DataOutputStream out) throws IOException {
+        if (containsZero) {
+            out.writeLong(0);
+            out.writeLong(0);
+        }
+        for (int i = 0; i < keys.length; i += 2) {
+            if (keys[i] != 0 || keys[i + 1] != 0) {
+                out.writeLong(keys[i]);
+                out.writeLong(keys[i + 1]);
+            }
+        }
+    }
+
+    private int slot(long high, long low) {
+        return (int) hash(high, low) & mask;
+    }
+
+    private void grow() {
+        int capacity = mask + 1;
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("Too many keys in one set: " + size);
+        }
+        long[] oldKeys = keys;
+        keys = new long[4 * capacity];
+        mask = 2 * capacity - 1;
+        for (int i = 0; i < oldKeys.length; i += 2) {
+            long high = oldKeys[i];
+            long low = oldKeys[i + 1];
+            if (high != 0 || low != 0) {
+                int slot = slot(high, low);
+                while (keys[2 * slot] != 0 || keys[2 * slot + 1] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[2 * slot] = high;
+                keys[2 * slot + 1] = low;
+            }
+        }
+    }
+}
+
+/**
+ * String to int map that interns its keys: the characters of every key are copied once into a byte arena and an open
+ * addressing table of int handles finds them again, with an int value per handle. Lookups compare the characters in
+ * place and allocate nothing, and can also be done with a slice of ASCII bytes, which finds the same key as the
+ * String of those characters. Keys with characters above 0xFF are kept in a map.
+ * The ledger uses it for the approved accounts, IBANs and card numbers, with the index of their owner, and for the
+ * index of the first user with every user id. A concurrent table splits the keys over stripes picked by their hash,
+ * each stripe is locked on its own. A table that is no longer changed can be read from any thread without locks.
+ */
+class InternTable {
+    public static final int ABSENT = -1;
+
+    private final boolean concurrent;
+    private final Stripe[] stripes;
+    private final Map<String, Integer> others;
+
+    public InternTable(int stripes, boolean concurrent) {
+        if (Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("Stripes must be a power of two: " + stripes);
+        }
+        this.concurrent = concurrent;
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        others = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+    }
+
+    // Returns the value of the key, or ABSENT
+    public int get(String key) {
+        int hash = hash(key);
+        if (hash == 0) {
+            return others.getOrDefault(key, ABSENT);
+        }
+        Stripe stripe = stripe(hash);
+        if (!concurrent) {
+            return stripe.value(stripe.find(key, hash));
+        }
+        synchronized (stripe) {
+            return stripe.value(stripe.find(key, hash));
+        }
+    }
+
+    // Returns the value of the key given as ASCII bytes, or ABSENT
+    public int get(byte[] bytes, int start, int length) {
+        int hash = hash(bytes, start, length);
+        Stripe stripe = stripe(hash);
+        if (!concurrent) {
+            return stripe.value(stripe.find(bytes, start, length, hash));
+        }
+        synchronized (stripe) {
+            return stripe.value(stripe.find(bytes, start, length, hash));
+        }
+    }
+
+    // Adds the key with the value, unless the key is already in the table
+    public void putIfAbsent(String key, int value) {
+        int hash = hash(key);
+        if (hash == 0) {
+            others.putIfAbsent(key, value);
+            return;
+        }
+        Stripe stripe = stripe(hash);
+        if (!concurrent) {
+            stripe.putIfAbsent(key, hash, value);
+            return;
+        }
+        synchronized (stripe) {
+            stripe.putIfAbsent(key, hash, value);
+        }
+    }
+
+    // Adds the key given as ASCII bytes with the value, unless the key is already in the table
+    public void putIfAbsent(byte[] bytes, int start, int length, int value) {
+        int hash = hash(bytes, start, length);
+        Stripe stripe = stripe(hash);
+        if (!concurrent) {
+            stripe.putIfAbsent(bytes, start, length, hash, value);
+            return;
+        }
+        synchronized (stripe) {
+            stripe.putIfAbsent(bytes, start, length, hash, value);
+        }
+    }
+
+    // Layout: count, then every key and its value
+    public void writeTo(DataOutputStream out) throws IOException {
+        long count = others.size();
+        for (Stripe stripe : stripes) {
+            count += stripe.size;
+        }
+        out.writeLong(count);
+        for (Stripe stripe : stripes) {
+            for (int handle = 0; handle < stripe.size; handle++) {
+                out.writeUTF(stripe.key(handle));
+                out.writeInt(stripe.values[handle]);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : others.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    // Reads the keys and values written by writeTo, every value must be from 0 up to valueLimit
+    public void readFrom(DataInputStream in, int valueLimit) throws IOException {
+        for (long i = in.readLong(); i > 0; i--) {
+            String key = in.readUTF();
+            int value = in.readInt();
+            if (value < 0 || value >= valueLimit) {
+                throw new IOException("Checkpoint has value " + value + " for " + key + ", it must be below " + valueLimit);
+            }
+            putIfAbsent(key, value);
+        }
+    }
+
+    // Non zero hash of the characters, or 0 when a character does not fit in a byte
+    private static int hash(String key) {
+        int hash = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c > 0xFF) {
+                return 0;
+            }
+            hash = 31 * hash + c;
+        }
+        return finish(hash);
+    }
+
+    // Same hash as the String of the ASCII bytes
+    private static int hash(byte[] bytes, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return finish(hash);
+    }
+
+    private static int finish(int hash) {
+        hash *= 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return hash == 0 ? 1 : hash;
+    }
+
+    // The low bits of the hash pick the slot in the stripe
+    private Stripe stripe(int hash) {
+        return stripes[hash >>> 24 & (stripes.length - 1)];
+    }
+
+    private static final class Stripe {
+        private static final int INITIAL_CAPACITY = 1 << 8;
+
+        // handle + 1 of the key in each slot, 0 for a free slot
+        private int[] table = new int[INITIAL_CAPACITY];
+        // per handle: hash, start of the characters in the arena (the next handle's start is the end) and value
+        private int[] hashes = new int[INITIAL_CAPACITY];
+        private int[] starts = new int[INITIAL_CAPACITY + 1];
+        private int[] values = new int[INITIAL_CAPACITY];
+        private byte[] arena = new byte[INITIAL_CAPACITY * 16];
+        private int size;
+
+        int value(int handle) {
+            return handle < 0 ? ABSENT : values[handle];
+        }
+
+        void putIfAbsent(String key, int hash, int value) {
+            if (find(key, hash) >= 0) {
+                return;
+            }
+            int start = reserve(key.length());
+            for (int i = 0; i < key.length(); i++) {
+                arena[start + i] = (byte) key.charAt(i);
+            }
+            add(start + key.length(), hash, value);
+        }
+
+        void putIfAbsent(byte[] bytes, int start, int length, int hash, int value) {
+            if (find(bytes, start, length, hash) >= 0) {
+                return;
+            }
+            int arenaStart = reserve(length);
+            System.arraycopy(bytes, start, arena, arenaStart, length);
+            add(arenaStart + length, hash, value);
+        }
+
+        String key(int handle) {
+            return new String(arena, starts[handle], starts[handle + 1] - starts[handle], StandardCharsets.ISO_8859_1);
+        }
+
+        int find(String key, int hash) {
+            int mask = table.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int handle = table[slot] - 1;
+                if (handle < 0 || hashes[handle] == hash && equals(handle, key)) {
+                    return handle;
+                }
+            }
+        }
+
+        int find(byte[] bytes, int start, int length, int hash) {
+            int mask = table.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int handle = table[slot] - 1;
+                if (handle < 0 || hashes[handle] == hash && Arrays.equals(arena, starts[handle], starts[handle + 1], bytes, start, start + length)) {
+                    return handle;
+                }
+            }
+        }
+
+        private boolean equals(int handle, String key) {
+            int start = starts[handle];
+            int length = starts[handle + 1] - start;
+            if (length != key.length()) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if ((arena[start + i] & 0xFF) != key.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Makes room for a new key of the given length and returns where its characters go in the arena
+        private int reserve(int length) {
+            if (size == values.length) {
+                hashes = Arrays.copyOf(hashes, 2 * size);
+                starts = Arrays.copyOf(starts, 2 * size + 1);
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            int start = starts[size];
+            if (start + length > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(2 * arena.length, start + length));
+            }
+            return start;
+        }
+
+        private void add(int end, int hash, int value) {
+            hashes[size] = hash;
+            starts[size + 1] = end;
+            values[size] = value;
+            insert(size, hash);
+            // grow at a load factor of 0.5, the table is only one int per slot
+            if (++size > table.length >>> 1) {
+                table = new int[2 * table.length];
+                for (int handle = 0; handle < size; handle++) {
+                    insert(handle, hashes[handle]);
+                }
+            }
+        }
+
+        private void insert(int handle, int hash) {
+            int mask = table.length - 1;
+            int slot = hash & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = handle + 1;
+        }
+    }
+}
+
+/**
+ * Money amounts as a whole number of cents in a long, so balances are updated without rounding drift.
+ * Formatting writes the digits itself and gives the same text as String.format("%.2f") did for the double amounts.
+ */
+final class Money {
+    private static final BigDecimal MAX = BigDecimal.valueOf(Long.MAX_VALUE).movePointLeft(2);
+
+    private Money() {
+    }
+
+    /**
+     * Parses an amount in any format BigDecimal accepts, more than two decimals are rounded half up like "%.2f" did.
+     * Amounts beyond the range of a long in cents are clamped to it. The transaction checks compare such amounts as
+     * written, see Transaction.compareAmountTo.
+     */
+    public static long parse(String amount) {
+        BigDecimal value = new BigDecimal(amount).setScale(2, RoundingMode.HALF_UP);
+        return value.max(MAX.negate()).min(MAX).unscaledValue().longValue();
+    }
+
+    // Whether parse gives the amount exactly: it has no non-zero part below a cent and is in the range of a long in cents
+    public static boolean isExact(String amount) {
+        BigDecimal value = new BigDecimal(amount);
+        return value.stripTrailingZeros().scale() <= 2 && isInRange(amount);
+    }
+
+    // Whether the amount rounded to cents is in the range of a long in cents
+    public static boolean isInRange(String amount) {
+        return new BigDecimal(amount).setScale(2, RoundingMode.HALF_UP).abs().compareTo(MAX) <= 0;
+    }
+
+    // Longest formatted amount, the sign, 17 digits, the point and 2 decimals
+    public static final int MAX_LENGTH = 21;
+
+    public static String format(long cents) {
+        StringBuilder sb = new StringBuilder(24);
+        appendTo(sb, cents);
+        return sb.toString();
+    }
+
+    // Appends the amount with two decimals without creating any objects
+    public static void appendTo(StringBuilder sb, long cents) {
+        if (cents < 0) {
+            sb.append('-');
+        }
+        long whole = Math.abs(cents / 100);
+        int fraction = (int) Math.abs(cents % 100);
+        int length = 1;
+        for (long rest = whole / 10; rest != 0; rest /= 10) {
+            length++;
+        }
+        int end = sb.length() + length;
+        sb.setLength(end);
+        do {
+            sb.setCharAt(--end, (char) ('0' + whole % 10));
+            whole /= 10;
+        } while (whole != 0);
+        sb.append('.').append((char) ('0' + fraction / 10)).append((char) ('0' + fraction % 10));
+    }
+
+    // Writes the amount with two decimals as ASCII bytes starting at the offset, returns the offset after it
+    public static int write(byte[] bytes, int offset, long cents) {
+        if (cents < 0) {
+            bytes[offset++] = '-';
+        }
+        long whole = Math.abs(cents / 100);
+        int fraction = (int) Math.abs(cents % 100);
+        int length = 1;
+        for (long rest = whole / 10; rest != 0; rest /= 10) {
+            length++;
+        }
+        int end = offset + length;
+        int pos = end;
+        do {
+            bytes[--pos] = (byte) ('0' + whole % 10);
+            whole /= 10;
+        } while (whole != 0);
+        bytes[end] = '.';
+        bytes[end + 1] = (byte) ('0' + fraction / 10);
+        bytes[end + 2] = (byte) ('0' + fraction % 10);
+        return end + 3;
+    }
+}
+
+/**
+ * Checkpoint of streaming processing: the ledger together with the offset of the next row in the transactions file and
+ * the length of the events file at that point. Written to a temporary file that then replaces the checkpoint file, so
+ * a crash never leaves a partly written checkpoint.
+ * The checkpoint also keeps a CRC32 of the last bytes before the offset, so resuming with a transactions file that was
+ * rotated or rewritten since, where the offset would fall anywhere in a row, is refused before anything is written.
+ * Layout: magic, version, transactions offset, CRC32 of the bytes before it, events length, then the ledger as written
+ * by Ledger.writeTo.
+ */
+class Checkpoint {
+    public static final long DEFAULT_INTERVAL = 1_000_000;
+    private static final int MAGIC = 0x54504350; // "TPCP"
+    private static final int VERSION = 3;
+    // number of bytes before the offset the CRC32 is taken of, at most
+    private static final int CHECKED_BYTES = 64 * 1024;
+
+    public final long transactionsOffset;
+    public final long eventsLength;
+
+    private Checkpoint(long transactionsOffset, long eventsLength) {
+        this.transactionsOffset = transactionsOffset;
+        this.eventsLength = eventsLength;
+    }
+
+    public static void write(Path path, Ledger ledger, Path transactionsPath, long transactionsOffset, long eventsLength) throws IOException {
+        long checksum = checksumBefore(transactionsPath, transactionsOffset);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(transactionsOffset);
+            out.writeLong(checksum);
+            out.writeLong(eventsLength);
+            ledger.writeTo(out);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Restores the ledger from the checkpoint file and returns the positions to resume from in the transactions file
+    public static Checkpoint read(Path path, Ledger ledger, Path transactionsPath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a checkpoint file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version);
+            }
+            long transactionsOffset = in.readLong();
+            long checksum = in.readLong();
+            if (Files.size(transactionsPath) < transactionsOffset || checksumBefore(transactionsPath, transactionsOffset) != checksum) {
+                throw new IOException("Checkpoint " + path + " was not written for the transactions file " + transactionsPath + " as it is now");
+            }
+            Checkpoint checkpoint = new Checkpoint(transactionsOffset, in.readLong());
+            ledger.readFrom(in);
+            return checkpoint;
+        }
+    }
+
+    // CRC32 of the last CHECKED_BYTES bytes before the offset of the file, or of all of them when there are fewer
+    private static long checksumBefore(Path file, long offset) throws IOException {
+        int length = (int) Math.min(offset, CHECKED_BYTES);
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, offset - length + bytes.position()) < 0) {
+                    throw new IOException(file + " is shorter than " + offset + " bytes");
+                }
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.flip());
+        return crc.getValue();
+    }
+}
+
+/**
+ * Reference data of a run: the users, the BinTable built from the bin mappings and the CountryTable.
+ * With a cache file, the reference data is compiled once into a binary image that later runs map and read as fixed
+ * layout tables instead of parsing the csv files and rebuilding the bin ranges. The image records the size and
+ * modification time of the three source files and is compiled again when one of them changes, or when it is
+ * truncated or corrupt, which a CRC32 of its contents shows. Like a checkpoint it is written to a temporary file that
+ * then replaces the cache file.
+ * Layout: magic, version, size and modification time of the users, bins and country codes files, CRC32 and length
+ * of the rest; user count, range count and string count; the end offsets and UTF-8 bytes of the strings; the users
+ * (string indexes of id, name and country, frozen flag, balance and limits in cents); the bin ranges as written by
+ * BinTable.writeTo; the country table as written by CountryTable.writeTo. Strings are referenced by their index, -1
+ * for null.
+ */
+final class ReferenceData {
+    private static final int MAGIC = 0x54505244; // "TPRD"
+    private static final int VERSION = 2;
+    // bytes of a user in the image: three string indexes, the frozen flag, the balance and four limits
+    private static final int USER_BYTES = 3 * 4 + 1 + 5 * 8;
+    // bytes of a bin range in the image, see BinTable.writeTo
+    private static final int RANGE_BYTES = 2 * 8 + 2 * 4;
+
+    public final List<User> users;
+    public final BinTable binTable;
+    public final CountryTable countryCodes;
+
+    private ReferenceData(List<User> users, BinTable binTable, CountryTable countryCodes) {
+        this.users = users;
+        this.binTable = binTable;
+        this.countryCodes = countryCodes;
+    }
+
+    // Reads the reference data from the source files
+    public static ReferenceData read(Path usersPath, Path binsPath, Path countryCodesPath) {
+        return new ReferenceData(TransactionProcessorSample.readUsers(usersPath), new BinTable(TransactionProcessorSample.readBinMappings(binsPath)),
+                TransactionProcessorSample.readCountryCodes(countryCodesPath));
+    }
+
+    // Reads the cache if it was compiled from the current source files, otherwise reads the sources and compiles it
+    public static ReferenceData load(Path usersPath, Path binsPath, Path countryCodesPath, Path cachePath) throws IOException {
+        // taken before reading, so a source changed while it is read is compiled again on the next run
+        long[] stamps = stamps(usersPath, binsPath, countryCodesPath);
+        if (Files.exists(cachePath)) {
+            ReferenceData cached = readCache(cachePath, stamps);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        ReferenceData data = read(usersPath, binsPath, countryCodesPath);
+        data.writeCache(cachePath, stamps);
+        return data;
+    }
+
+    private static long[] stamps(Path... sources) throws IOException {
+        long[] stamps = new long[2 * sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            stamps[2 * i] = Files.size(sources[i]);
+            stamps[2 * i + 1] = Files.getLastModifiedTime(sources[i]).toMillis();
+        }
+        return stamps;
+    }
+
+    // Returns null when the cache is from another version or other source files, or is truncated or corrupt
+    private static ReferenceData readCache(Path cachePath, long[] stamps) throws IOException {
+        try (FileChannel channel = FileChannel.open(cachePath, StandardOpenOption.READ)) {
+            MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (image.limit() < 8 || image.getInt() != MAGIC || image.getInt() != VERSION) {
+                return null;
+            }
+            for (long stamp : stamps) {
+                if (image.getLong() != stamp) {
+                    return null;
+                }
+            }
+            long checksum = image.getLong();
+            if (image.getLong() != image.remaining()) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(image.slice());
+            if (crc.getValue() != checksum) {
+                return null;
+            }
+            int userCount = image.getInt();
+            int rangeCount = image.getInt();
+            int stringCount = image.getInt();
+            if (userCount < 0 || rangeCount < 0 || stringCount < 0
+                    || 4L * stringCount + (long) USER_BYTES * userCount + (long) RANGE_BYTES * rangeCount > image.remaining()) {
+                return null;
+            }
+            String[] strings = new String[stringCount];
+            int stringStart = image.position() + 4 * strings.length;
+            byte[] bytes = new byte[64];
+            for (int i = 0, start = stringStart; i < strings.length; i++) {
+                int end = stringStart + image.getInt();
+                if (bytes.length < end - start) {
+                    bytes = new byte[end - start];
+                }
+                image.get(start, bytes, 0, end - start);
+                strings[i] = new String(bytes, 0, end - start, StandardCharsets.UTF_8);
+                start = end;
+            }
+            image.position(stringStart + (strings.length == 0 ? 0 : image.getInt(stringStart - 4)));
+            List<User> users = new ArrayList<>(userCount);
+            for (int i = 0; i < userCount; i++) {
+                String userId = string(strings, image.getInt());
+                String username = string(strings, image.getInt());
+                String country = string(strings, image.getInt());
+                boolean frozen = image.get() != 0;
+                users.add(new User(userId, username, image.getLong(), country, frozen, image.getLong(), image.getLong(), image.getLong(), image.getLong()));
+            }
+            BinTable binTable = new BinTable(image, rangeCount, strings);
+            CountryTable countryCodes = new CountryTable(image, strings);
+            return new ReferenceData(users, binTable, countryCodes);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            // a header that does not fit the contents, which the checksum does not rule out
+            return null;
+        }
+    }
+
+    static String string(String[] strings, int index) {
+        return index < 0 ? null : strings[index];
+    }
+
+    private void writeCache(Path cachePath, long[] stamps) throws IOException {
+        // the tables are written first to learn the strings they use
+        Map<String, Integer> stringIndexes = new LinkedHashMap<>();
+        ToIntFunction<String> stringIndex = string -> string == null ? -1 : stringIndexes.computeIfAbsent(string, s -> stringIndexes.size());
+        ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+        DataOutputStream tables = new DataOutputStream(tableBytes);
+        for (User user : users) {
+            tables.writeInt(stringIndex.applyAsInt(user.userId));
+            tables.writeInt(stringIndex.applyAsInt(user.username));
+            tables.writeInt(stringIndex.applyAsInt(user.country));
+            tables.writeBoolean(user.frozen);
+            tables.writeLong(user.balance);
+            tables.writeLong(user.minDeposit);
+            tables.writeLong(user.maxDeposit);
+            tables.writeLong(user.minWithdraw);
+            tables.writeLong(user.maxWithdraw);
+        }
+        binTable.writeTo(tables, stringIndex);
+        countryCodes.writeTo(tables, stringIndex);
+        tables.flush();
+
+        ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        DataOutputStream pool = new DataOutputStream(poolBytes);
+        pool.writeInt(users.size());
+        pool.writeInt(binTable.size());
+        pool.writeInt(stringIndexes.size());
+        List<byte[]> encoded = new ArrayList<>(stringIndexes.size());
+        int end = 0;
+        for (String string : stringIndexes.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            end += bytes.length;
+            pool.writeInt(end);
+        }
+        for (byte[] bytes : encoded) {
+            pool.write(bytes);
+        }
+        pool.flush();
+        CRC32 crc = new CRC32();
+        crc.update(poolBytes.toByteArray());
+        tableBytes.writeTo(new CheckedOutputStream(OutputStream.nullOutputStream(), crc));
+
+        Path temporary = cachePath.resolveSibling(cachePath.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (long stamp : stamps) {
+                out.writeLong(stamp);
+            }
+            out.writeLong(crc.getValue());
+            out.writeLong((long) poolBytes.size() + tableBytes.size());
+            poolBytes.writeTo(out);
+            tableBytes.writeTo(out);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
+
+
+/**
+ * Multi-core variant of processTransactions. Transactions are sharded by user id over worker threads, every worker
+ * processes the transactions of its users in file order, so the limits, balance and accounts of a user are only
+ * touched by one thread. The ledger is shared and concurrent.
+ * Transaction id uniqueness and account ownership depend on other users' transactions, so before reading them a
+ * transaction waits until the previous transaction with the same id and the previous one with the same account are
+ * done. As every transaction waits like this, these checks see exactly the state the sequential run sees, and the
+ * events are collected by their position in the file, so the result is identical to processTransactions.
+ * Waits only point to earlier transactions, so the earliest transaction that is not done can always progress.
+ */
+class ParallelTransactionProcessor {
+    private static final int SPINS_BEFORE_YIELD = 100;
+
+    private final List<User> users;
+    private final BinTable binTable;
+    private final CountryTable countryCodes;
+    private final int threads;
+    private final ProcessingMetrics metrics;
+
+    public ParallelTransactionProcessor(List<User> users, BinTable binTable, CountryTable countryCodes, int threads, ProcessingMetrics metrics) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive, got " + threads);
+        }
+        this.users = users;
+        this.binTable = binTable;
+        this.countryCodes = countryCodes;
+        this.threads = threads;
+        this.metrics = metrics;
+    }
+
+    public List<Event> process(List<Transaction> transactions) throws InterruptedException {
+        int count = transactions.size();
+        Ledger ledger = new Ledger(users, true);
+        // index of the previous transaction with the same id and with the same account, -1 if there is none
+        int[] previousSameId = new int[count];
+        int[] previousSameAccount = new int[count];
+        int[] shardSizes = new int[threads];
+        int[] shardOf = new int[count];
+        // maps rather than InternTables: the keys are already Strings of the transactions, an InternTable copies them
+        Map<String, Integer> lastById = new HashMap<>();
+        Map<String, Integer> lastByAccount = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Transaction transaction = transactions.get(i);
+            previousSameId[i] = Objects.requireNonNullElse(lastById.put(transaction.transactionId, i), -1);
+            previousSameAccount[i] = Objects.requireNonNullElse(lastByAccount.put(transaction.accountNumber, i), -1);
+            shardOf[i] = Math.floorMod(Objects.hashCode(transaction.userId), threads);
+            shardSizes[shardOf[i]]++;
+        }
+        int[][] shards = new int[threads][];
+        for (int shard = 0; shard < threads; shard++) {
+            shards[shard] = new int[shardSizes[shard]];
+            shardSizes[shard] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            shards[shardOf[i]][shardSizes[shardOf[i]]++] = i;
+        }
+
+        Event[] events = new Event[count];
+        AtomicIntegerArray done = new AtomicIntegerArray(count);
+        AtomicBoolean failed = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int[] shard : shards) {
+                workers.add(executor.submit(() -> {
+                    try {
+                        for (int i : shard) {
+                            awaitDone(done, failed, previousSameId[i]);
+                            awaitDone(done, failed, previousSameAccount[i]);
+                            events[i] = TransactionProcessorSample.processTransaction(ledger, transactions.get(i), binTable, countryCodes, metrics);
+                            done.set(i, 1);
+                        }
+                    } catch (RuntimeException | Error e) {
+                        failed.set(true);
+                        throw e;
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Parallel processing failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return Arrays.asList(events);
+    }
+
+    private static void awaitDone(AtomicIntegerArray done, AtomicBoolean failed, int index) {
+        int spins = 0;
+        while (index >= 0 && done.get(index) == 0) {
+            if (failed.get()) {
+                throw new IllegalStateException("Another worker failed");
+            }
+            if (++spins < SPINS_BEFORE_YIELD) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+}
+
+/**
+ * Pipelined variant of processTransactionsStreaming: a parser thread reads the transactions file into columnar
+ * TransactionBatches, the calling thread validates the batches in file order with a BatchValidator, and a writer
+ * thread encodes and writes the events of every validated batch, so reading and writing overlap with validation.
+ * The stages hand whole batches to each other through SpscRings, and the written batches go back to the parser
+ * through a ring of their own, so the pipeline allocates no batches after it starts. Validation runs on one thread in
+ * file order with the same rules as processTransactions, so the results are identical.
+ */
+class PipelinedTransactionProcessor {
+    static final int BATCH_SIZE = 1024;
+    // batches in the pipeline, every ring can hold all of them, so handing a batch on never waits
+    static final int BATCHES = 8;
+    private static final int SPINS_BEFORE_YIELD = 100;
+    private static final int YIELDS_BEFORE_PARK = 1000;
+    private static final long PARK_NANOS = 50_000;
+
+    private final List<User> users;
+    private final BinTable binTable;
+    private final CountryTable countryCodes;
+    private final ProcessingMetrics metrics;
+
+    public PipelinedTransactionProcessor(List<User> users, BinTable binTable, CountryTable countryCodes, ProcessingMetrics metrics) {
+        this.users = users;
+        this.binTable = binTable;
+        this.countryCodes = countryCodes;
+        this.metrics = metrics;
+    }
+
+    public void process(Path transactionsPath, Path eventsPath) throws IOException, InterruptedException {
+        SpscRing<TransactionBatch> parsed = new SpscRing<>(BATCHES);
+        SpscRing<TransactionBatch> validated = new SpscRing<>(BATCHES);
+        SpscRing<TransactionBatch> free = new SpscRing<>(BATCHES);
+        for (int i = 0; i < BATCHES; i++) {
+            free.offer(new TransactionBatch(BATCH_SIZE));
+        }
+        // created before the parser starts, which reads the user indexes from it
+        Ledger ledger = new Ledger(users);
+        BatchValidator validator = new BatchValidator(users, ledger, binTable, countryCodes, metrics, BATCH_SIZE);
+        // the first failure of any stage, the other stages stop when they see it
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> parser = executor.submit(() -> runStage(failure, () -> parse(transactionsPath, ledger, free, parsed, failure)));
+            Future<?> writer = executor.submit(() -> runStage(failure, () -> write(eventsPath, validated, free, failure)));
+            runStage(failure, () -> validate(validator, parsed, validated, failure));
+            parser.get();
+            writer.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Pipelined processing failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        Throwable cause = failure.get();
+        if (cause instanceof IOException e) {
+            throw e;
+        }
+        if (cause != null) {
+            throw new IllegalStateException("Pipelined processing failed", cause);
+        }
+    }
+
+    private void parse(Path transactionsPath, Ledger ledger, SpscRing<TransactionBatch> free, SpscRing<TransactionBatch> parsed, AtomicReference<Throwable> failure) throws IOException {
+        try (MappedCsvReader reader = new MappedCsvReader(transactionsPath)) {
+            reader.nextRow();
+            boolean last = false;
+            while (!last) {
+                TransactionBatch batch = take(free, failure);
+                batch.read(reader, ledger, metrics);
+                last = batch.last;
+                put(parsed, batch, failure);
+            }
+        }
+    }
+
+    private void validate(BatchValidator validator, SpscRing<TransactionBatch> parsed, SpscRing<TransactionBatch> validated, AtomicReference<Throwable> failure) {
+        boolean last = false;
+        while (!last) {
+            TransactionBatch batch = take(parsed, failure);
+            validator.validate(batch);
+            last = batch.last;
+            put(validated, batch, failure);
+        }
+    }
+
+    private void write(Path eventsPath, SpscRing<TransactionBatch> validated, SpscRing<TransactionBatch> free, AtomicReference<Throwable> failure) throws IOException {
+        try (EventWriter writer = new EventWriter(eventsPath)) {
+            boolean last = false;
+            while (!last) {
+                TransactionBatch batch = take(validated, failure);
+                for (int i = 0; i < batch.size; i++) {
+                    long start = metrics.start();
+                    writer.write(batch, i);
+                    metrics.stop(ProcessingMetrics.Stage.WRITE, start);
+                }
+                last = batch.last;
+                put(free, batch, failure);
+            }
+        }
+    }
+
+    private interface Stage {
+        void run() throws IOException;
+    }
+
+    // Runs the stage and records its failure, unless another stage failed first
+    private static Void runStage(AtomicReference<Throwable> failure, Stage stage) {
+        try {
+            stage.run();
+        } catch (StageStoppedException e) {
+            // another stage failed and recorded why
+        } catch (IOException | RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+        }
+        return null;
+    }
+
+    private static <T> T take(SpscRing<T> ring, AtomicReference<Throwable> failure) {
+        T item;
+        for (int waits = 0; (item = ring.poll()) == null; waits++) {
+            backOff(waits, failure);
+        }
+        return item;
+    }
+
+    private static <T> void put(SpscRing<T> ring, T item, AtomicReference<Throwable> failure) {
+        for (int waits = 0; !ring.offer(item); waits++) {
+            backOff(waits, failure);
+        }
+    }
+
+    // Spins briefly, then yields, then parks, so a stage waiting for a slow neighbour does not keep a core busy
+    private static void backOff(int waits, AtomicReference<Throwable> failure) {
+        if (failure.get() != null) {
+            throw new StageStoppedException();
+        }
+        if (waits < SPINS_BEFORE_YIELD) {
+            Thread.onSpinWait();
+        } else if (waits < SPINS_BEFORE_YIELD + YIELDS_BEFORE_PARK) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    private static final class StageStoppedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StageStoppedException() {
+            super("Another pipeline stage failed", null, false, false);
+        }
+    }
+}
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread. The producer only advances the
+ * tail and the consumer only the head, each publishes its counter with a release store and keeps a cached copy of
+ * the other counter, so a call usually reads no memory written by the other thread.
+ */
+class SpscRing<T> {
+    private final Object[] slots;
+    private final int mask;
+    // next slot to read, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // next slot to write, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+    private long cachedHead;
+    private long cachedTail;
+
+    public SpscRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        slots = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    // Producer side, returns false when the ring is full
+    public boolean offer(T item) {
+        long t = tail.get();
+        if (t - cachedHead == slots.length) {
+            cachedHead = head.get();
+            if (t - cachedHead == slots.length) {
+                return false;
+            }
+        }
+        slots[(int) t & mask] = item;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // Consumer side, returns null when the ring is empty
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = head.get();
+        if (h == cachedTail) {
+            cachedTail = tail.get();
+            if (h == cachedTail) {
+                return null;
+            }
+        }
+        int slot = (int) h & mask;
+        T item = (T) slots[slot];
+        slots[slot] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+}
+
+/**
+ * Columnar batch of transactions, used by the pipelined mode instead of a list of Transaction objects. Every column is
+ * a primitive array: type and method as byte codes, the amount in cents, the user as the index of the first user
+ * with the id, and the id, user id, type, method and account number as slices of one byte arena, one byte per
+ * character. The event of every row is kept in columns as well, so a batch goes from the parser to the validator and
+ * the writer and back to the parser without any per row allocation.
+ * Rows with a character that is not ASCII are kept as a Transaction and validated by processTransaction, so their
+ * results are exactly those of the other modes.
+ */
+class TransactionBatch {
+    static final byte DEPOSIT = 0;
+    static final byte WITHDRAW = 1;
+    static final byte CARD = 0;
+    static final byte TRANSFER = 1;
+    static final byte OTHER = 2;
+    // the text fields in the arena, in this order
+    static final int ID = 0;
+    static final int USER = 1;
+    static final int TYPE = 2;
+    static final int METHOD = 3;
+    static final int ACCOUNT = 4;
+    static final int FIELDS = 5;
+    // columns of the text fields in the transactions file
+    private static final int[] COLUMNS = {0, 1, 2, 4, 5};
+
+    final int capacity;
+    int size;
+    // the end of the file was reached, no batch follows
+    boolean last;
+
+    final byte[] types;
+    final byte[] methods;
+    final long[] amounts;
+    // index of the first user with the id, InternTable.ABSENT for unknown users
+    final int[] users;
+    // field f of row i starts at starts[FIELDS * i + f] in bytes and ends where the next field starts
+    final int[] starts;
+    byte[] bytes;
+    // the rows that are not ASCII or have an amount with a part below a cent, null for the others
+    final Transaction[] fallbacks;
+
+    // event of every row: reason ordinal, amount, limit and detail, the detail is a text field of the row or a String
+    final byte[] reasons;
+    final long[] limits;
+    final byte[] detailFields;
+    final String[] detailTexts;
+    // events of the fallback rows
+    final Event[] fallbackEvents;
+
+    TransactionBatch(int capacity) {
+        this.capacity = capacity;
+        types = new byte[capacity];
+        methods = new byte[capacity];
+        amounts = new long[capacity];
+        users = new int[capacity];
+        starts = new int[FIELDS * capacity + 1];
+        bytes = new byte[capacity * 128];
+        fallbacks = new Transaction[capacity];
+        reasons = new byte[capacity];
+        limits = new long[capacity];
+        detailFields = new byte[capacity];
+        detailTexts = new String[capacity];
+        fallbackEvents = new Event[capacity];
+    }
+
+    int start(int row, int field) {
+        return starts[FIELDS * row + field];
+    }
+
+    int length(int row, int field) {
+        return starts[FIELDS * row + field + 1] - starts[FIELDS * row + field];
+    }
+
+    // Fills the batch with the next rows of the reader, user ids are looked up in the ledger
+    void read(MappedCsvReader reader, Ledger ledger, ProcessingMetrics metrics) throws IOException {
+        size = 0;
+        while (size < capacity) {
+            long start = metrics.start();
+            if (!reader.nextRow()) {
+                break;
+            }
+            readRow(reader, ledger, size++);
+            metrics.stop(ProcessingMetrics.Stage.PARSE, start);
+        }
+        last = size < capacity;
+    }
+
+    private void readRow(MappedCsvReader reader, Ledger ledger, int row) {
+        int rowStart = starts[FIELDS * row];
+        // amounts that are not exact in cents are compared as written, which processTransaction does
+        boolean ascii = reader.fieldCount() > COLUMNS[ACCOUNT] && reader.fieldIsExactAmount(3);
+        if (ascii) {
+            int length = 0;
+            for (int column : COLUMNS) {
+                length += reader.fieldLength(column);
+            }
+            if (rowStart + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, rowStart + length));
+            }
+            int position = rowStart;
+            for (int field = 0; field < FIELDS; field++) {
+                ascii &= reader.copyAsciiField(COLUMNS[field], bytes, position);
+                position += reader.fieldLength(COLUMNS[field]);
+                starts[FIELDS * row + field + 1] = position;
+            }
+        }
+        if (!ascii) {
+            // short rows and malformed amounts fail here the same way as in the other modes
+            fallbacks[row] = TransactionProcessorSample.parseTransaction(reader);
+            Arrays.fill(starts, FIELDS * row + 1, FIELDS * (row + 1) + 1, rowStart);
+            return;
+        }
+        fallbacks[row] = null;
+        types[row] = reader.fieldEquals(2, "DEPOSIT") ? DEPOSIT : reader.fieldEquals(2, "WITHDRAW") ? WITHDRAW : OTHER;
+        methods[row] = reader.fieldEquals(4, "CARD") ? CARD : reader.fieldEquals(4, "TRANSFER") ? TRANSFER : OTHER;
+        amounts[row] = reader.fieldAsAmount(3);
+        users[row] = ledger.userIndex(bytes, start(row, USER), length(row, USER));
+    }
+}
+
+/**
+ * Validates TransactionBatches with the rules of processTransaction. The checks that only depend on the row and its
+ * user (user, frozen, amount, limits and type; then IBAN, BIN and country) run as separate loops over the columns,
+ * the checks that depend on the earlier rows (duplicate id, balance, withdraw account and account owner) then run
+ * row by row in file order and pick the first failing check in the order of processTransaction. The result of every
+ * row is the same as from processTransaction.
+ */
+class BatchValidator {
+    private static final EventReason[] REASONS = EventReason.values();
+    // no failed check yet
+    private static final byte PASSED = -1;
+    private static final byte NO_FIELD = -1;
+
+    private final Ledger ledger;
+    private final BinTable binTable;
+    private final CountryTable countryCodes;
+    private final ProcessingMetrics metrics;
+    // copied from the users by index, so the checks read primitive arrays
+    private final long[] minDeposits;
+    private final long[] maxDeposits;
+    private final long[] minWithdraws;
+    private final long[] maxWithdraws;
+    private final String[] countries;
+    // alpha-3 code of the user's country for the card country check
+    private final String[] cardCountries;
+
+    // results of the checks that only depend on the row, and the non-debit type of a card
+    private final byte[] userChecks;
+    private final byte[] methodChecks;
+    private final String[] nonDebitTypes;
+
+    BatchValidator(List<User> users, Ledger ledger, BinTable binTable, CountryTable countryCodes, ProcessingMetrics metrics, int capacity) {
+        this.ledger = ledger;
+        this.binTable = binTable;
+        this.countryCodes = countryCodes;
+        this.metrics = metrics;
+        int count = users.size();
+        minDeposits = new long[count];
+        maxDeposits = new long[count];
+        minWithdraws = new long[count];
+        maxWithdraws = new long[count];
+        countries = new String[count];
+        cardCountries = new String[count];
+        for (int i = 0; i < count; i++) {
+            User user = users.get(i);
+            minDeposits[i] = user.minDeposit;
+            maxDeposits[i] = user.maxDeposit;
+            minWithdraws[i] = user.minWithdraw;
+            maxWithdraws[i] = user.maxWithdraw;
+            countries[i] = user.country;
+            cardCountries[i] = countryCodes.get(user.country);
+        }
+        userChecks = new byte[capacity];
+        methodChecks = new byte[capacity];
+        nonDebitTypes = new String[capacity];
+    }
+
+    void validate(TransactionBatch batch) {
+        long start = System.nanoTime();
+        checkUsersAndAmounts(batch);
+        checkAccounts(batch);
+        applyInOrder(batch);
+        metrics.stopBatch(ProcessingMetrics.Stage.VALIDATION, start, batch.size);
+    }
+
+    // User exists and is not frozen, amount is positive and within the user's limits for the type
+    private void checkUsersAndAmounts(TransactionBatch batch) {
+        int[] users = batch.users;
+        long[] amounts = batch.amounts;
+        byte[] types = batch.types;
+        for (int i = 0; i < batch.size; i++) {
+            // the columns of a fallback row are not filled, applyInOrder processes it as a Transaction
+            if (batch.fallbacks[i] != null) {
+                continue;
+            }
+            int user = users[i];
+            long amount = amounts[i];
+            EventReason reason;
+            if (user == InternTable.ABSENT) {
+                reason = EventReason.USER_NOT_FOUND;
+            } else if (ledger.isFrozen(user)) {
+                reason = EventReason.USER_FROZEN;
+            } else if (amount <= 0) {
+                reason = EventReason.INVALID_AMOUNT;
+            } else if (types[i] == TransactionBatch.DEPOSIT) {
+                reason = amount < minDeposits[user] ? EventReason.UNDER_DEPOSIT_LIMIT : amount > maxDeposits[user] ? EventReason.OVER_DEPOSIT_LIMIT : null;
+            } else if (types[i] == TransactionBatch.WITHDRAW) {
+                reason = amount < minWithdraws[user] ? EventReason.UNDER_WITHDRAW_LIMIT : amount > maxWithdraws[user] ? EventReason.OVER_WITHDRAW_LIMIT : null;
+            } else {
+                reason = EventReason.UNSUPPORTED_TYPE;
+            }
+            userChecks[i] = reason == null ? PASSED : (byte) reason.ordinal();
+        }
+    }
+
+    // IBAN and its country for transfers, bin range, country and card type for cards, of the rows that passed so far
+    private void checkAccounts(TransactionBatch batch) {
+        byte[] bytes = batch.bytes;
+        for (int i = 0; i < batch.size; i++) {
+            if (userChecks[i] != PASSED || batch.fallbacks[i] != null) {
+                continue;
+            }
+            int account = batch.start(i, TransactionBatch.ACCOUNT);
+            int length = batch.length(i, TransactionBatch.ACCOUNT);
+            int user = batch.users[i];
+            EventReason reason = null;
+            if (batch.methods[i] == TransactionBatch.TRANSFER) {
+                long start = metrics.start();
+                boolean valid = Iban.isValid(bytes, account, length);
+                metrics.stop(ProcessingMetrics.Stage.IBAN, start);
+                String country = countries[user];
+                if (!valid) {
+                    reason = EventReason.INVALID_IBAN;
+                } else if (country.length() != 2 || country.charAt(0) != bytes[account] || country.charAt(1) != bytes[account + 1]) {
+                    reason = EventReason.ACCOUNT_COUNTRY_MISMATCH;
+                }
+            } else if (batch.methods[i] == TransactionBatch.CARD) {
+                long start = metrics.start();
+                long prefix = BinTable.cardPrefix(bytes, account, length);
+                int range = prefix == BinTable.INVALID_PREFIX ? -1 : binTable.find(prefix);
+                metrics.stop(ProcessingMetrics.Stage.BIN, start);
+                if (prefix == BinTable.INVALID_PREFIX) {
+                    // processTransaction fails on such card numbers
+                    reason = EventReason.PROCESSING_ERROR;
+                } else if (range >= 0 && !binTable.matchesCountry(range, cardCountries[user])) {
+                    reason = EventReason.CARD_COUNTRY_MISMATCH;
+                } else if (range >= 0 && binTable.nonDebitType(range) != null) {
+                    reason = EventReason.CARD_NOT_DEBIT;
+                    nonDebitTypes[i] = binTable.nonDebitType(range);
+                }
+            } else {
+                reason = EventReason.UNSUPPORTED_METHOD;
+            }
+            methodChecks[i] = reason == null ? PASSED : (byte) reason.ordinal();
+        }
+    }
+
+    // Applies the checks that depend on the earlier rows and updates the ledger, row by row
+    private void applyInOrder(TransactionBatch batch) {
+        byte[] bytes = batch.bytes;
+        for (int i = 0; i < batch.size; i++) {
+            if (batch.fallbacks[i] != null) {
+                batch.fallbackEvents[i] = TransactionProcessorSample.processTransaction(ledger, batch.fallbacks[i], binTable, countryCodes, metrics);
+                continue;
+            }
+            batch.fallbackEvents[i] = null;
+            int id = batch.start(i, TransactionBatch.ID);
+            int idLength = batch.length(i, TransactionBatch.ID);
+            int account = batch.start(i, TransactionBatch.ACCOUNT);
+            int accountLength = batch.length(i, TransactionBatch.ACCOUNT);
+            int userIndex = batch.users[i];
+            EventReason reason;
+            if (ledger.isProcessed(bytes, id, idLength)) {
+                reason = EventReason.DUPLICATE_TRANSACTION;
+            } else if (userChecks[i] != PASSED) {
+                reason = REASONS[userChecks[i]];
+            } else if (batch.types[i] == TransactionBatch.WITHDRAW && batch.amounts[i] > ledger.user(userIndex).balance) {
+                reason = EventReason.INSUFFICIENT_BALANCE;
+            } else if (batch.types[i] == TransactionBatch.WITHDRAW && !ledger.isAccountApproved(bytes, account, accountLength)) {
+                reason = EventReason.NEW_WITHDRAW_ACCOUNT;
+            } else if (methodChecks[i] != PASSED) {
+                reason = REASONS[methodChecks[i]];
+            } else if (ledger.isAccountUsedByAnotherUser(bytes, account, accountLength, userIndex)) {
+                reason = EventReason.ACCOUNT_IN_USE;
+            } else {
+                User user = ledger.user(userIndex);
+                try {
+                    user.balance = batch.types[i] == TransactionBatch.DEPOSIT ? Math.addExact(user.balance, batch.amounts[i]) : Math.subtractExact(user.balance, batch.amounts[i]);
+                    reason = EventReason.APPROVED;
+                    ledger.approveAccount(bytes, account, accountLength, userIndex);
+                } catch (ArithmeticException e) {
+                    // processTransaction fails on the same overflow
+                    reason = EventReason.PROCESSING_ERROR;
+                }
+            }
+            // an unsupported method is the one decline that does not use up the transaction id
+            if (reason != EventReason.UNSUPPORTED_METHOD) {
+                ledger.markProcessed(bytes, id, idLength);
+            }
+            describe(batch, i, reason);
+            metrics.count(reason);
+        }
+    }
+
+    // Sets the event columns of the row, with the same arguments processTransaction gives the event
+    private void describe(TransactionBatch batch, int row, EventReason reason) {
+        int user = batch.users[row];
+        byte detailField = NO_FIELD;
+        String detailText = null;
+        long limit = 0;
+        switch (reason) {
+            case USER_NOT_FOUND, USER_FROZEN -> detailField = TransactionBatch.USER;
+            case UNDER_DEPOSIT_LIMIT -> limit = minDeposits[user];
+            case OVER_DEPOSIT_LIMIT -> limit = maxDeposits[user];
+            case UNDER_WITHDRAW_LIMIT -> limit = minWithdraws[user];
+            case OVER_WITHDRAW_LIMIT -> limit = maxWithdraws[user];
+            case INSUFFICIENT_BALANCE -> limit = ledger.user(user).getBalance();
+            case NEW_WITHDRAW_ACCOUNT, INVALID_IBAN, ACCOUNT_IN_USE -> detailField = TransactionBatch.ACCOUNT;
+            case UNSUPPORTED_TYPE -> detailField = TransactionBatch.TYPE;
+            case UNSUPPORTED_METHOD -> detailField = TransactionBatch.METHOD;
+            case ACCOUNT_COUNTRY_MISMATCH, CARD_COUNTRY_MISMATCH -> detailText = countries[user];
+            case CARD_NOT_DEBIT -> detailText = nonDebitTypes[row];
+            default -> {
+            }
+        }
+        batch.reasons[row] = (byte) reason.ordinal();
+        batch.limits[row] = limit;
+        batch.detailFields[row] = detailField;
+        batch.detailTexts[row] = detailText;
+    }
+}
+
+
+/**
+ * Resident service mode: keeps the users, the reference data and the ledger in memory between batches of
+ * transactions, so the JVM startup, the reading of the reference data and the JIT warm-up are paid once instead of on
+ * every batch. Serves HTTP on the loopback interface with the JDK HttpServer, every exchange on its own virtual thread:
+ * POST /transactions takes rows in the transactions.csv format, header row first, and responds with their events in
+ * the events.csv format; GET /balances responds with the balances in the balances.csv format, and
+ * GET /balances?user_id=ID with the row of one user.
+ * A batch is parsed and its events are written without the lock, only its validation runs under it, with the same
+ * processTransaction chain as the list mode. Batches are validated whole and one at a time, so a series of batches
+ * gives the same events and balances as one transactions file with their rows in the order the batches were validated.
+ */
+class TransactionService {
+    static final int DEFAULT_PORT = 8080;
+    // seconds a stop waits for the exchanges in progress
+    private static final int STOP_DELAY = 5;
+    private static final String CSV = "text/csv; charset=utf-8";
+
+    private final List<User> users;
+    private final BinTable binTable;
+    private final CountryTable countryCodes;
+    private final ProcessingMetrics metrics;
+    private final Ledger ledger;
+    // guards the ledger and the balances; waiting for a ReentrantLock unmounts a virtual thread, synchronized would pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public TransactionService(List<User> users, BinTable binTable, CountryTable countryCodes, ProcessingMetrics metrics) {
+        this.users = users;
+        this.binTable = binTable;
+        this.countryCodes = countryCodes;
+        this.metrics = metrics;
+        this.ledger = new Ledger(users);
+    }
+
+    // Validates the transactions in order against the ledger of the service
+    public List<Event> process(List<Transaction> transactions) {
+        List<Event> events = new ArrayList<>(transactions.size());
+        lock.lock();
+        try {
+            for (Transaction transaction : transactions) {
+                events.add(TransactionProcessorSample.processTransaction(ledger, transaction, binTable, countryCodes, metrics));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return events;
+    }
+
+    // Starts serving on the port, 0 for any free port
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/transactions", this::handleTransactions);
+        server.createContext("/balances", this::handleBalances);
+        server.start();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    // Stops accepting exchanges and waits a few seconds for the ones in progress, then releases awaitStop
+    public void stop() {
+        stop(STOP_DELAY);
+    }
+
+    // The same with the seconds to wait, HttpServer waits all of them even when no exchange is in progress
+    void stop(int delay) {
+        server.stop(delay);
+        executor.shutdown();
+        stopped.countDown();
+    }
+
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    private void handleTransactions(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "Transactions are posted\n");
+                return;
+            }
+            List<Transaction> transactions;
+            try {
+                transactions = parse(exchange.getRequestBody().readAllBytes());
+            } catch (RuntimeException e) {
+                // nothing of a malformed batch is processed
+                respond(exchange, 400, "Malformed transactions: " + e.getMessage() + "\n");
+                return;
+            }
+            List<Event> events = process(transactions);
+            exchange.getResponseHeaders().set("Content-Type", CSV);
+            exchange.sendResponseHeaders(200, 0);
+            try (EventWriter writer = new EventWriter(exchange.getResponseBody())) {
+                for (Event event : events) {
+                    long start = metrics.start();
+                    writer.write(event);
+                    metrics.stop(ProcessingMetrics.Stage.WRITE, start);
+                }
+            }
+        }
+    }
+
+    private List<Transaction> parse(byte[] csv) throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        try (MappedCsvReader reader = new MappedCsvReader(ByteBuffer.wrap(csv))) {
+            reader.nextRow();
+            Transaction transaction;
+            while ((transaction = TransactionProcessorSample.nextTransaction(reader, metrics)) != null) {
+                transactions.add(transaction);
+            }
+        }
+        return transactions;
+    }
+
+    private void handleBalances(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, "Balances are read with GET\n");
+                return;
+            }
+            String userId = queryParameter(exchange, "user_id");
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            // the balances are copied under the lock, so they are the balances between two batches
+            lock.lock();
+            try {
+                List<User> selected = users;
+                if (userId != null) {
+                    User user = ledger.getUser(userId);
+                    if (user == null) {
+                        respond(exchange, 404, "User " + userId + " not found\n");
+                        return;
+                    }
+                    selected = List.of(user);
+                }
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8))) {
+                    TransactionProcessorSample.writeBalances(writer, selected);
+                }
+            } finally {
+                lock.unlock();
+            }
+            exchange.getResponseHeaders().set("Content-Type", CSV);
+            exchange.sendResponseHeaders(200, body.size());
+            body.writeTo(exchange.getResponseBody());
+        }
+    }
+
+    // Returns the decoded value of a query parameter, or null if the request has none
+    private static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0 && URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8).equals(name)) {
+                return URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+}
+
+/**
+ * Counters and timings of a processing run: the number of events per reason, the rows per second, and latency
+ * histograms of the parse, validation, IBAN check, BIN lookup and write stages. Validation includes the IBAN and BIN
+ * stages. To stay cheap enough to always be on, only about one in SAMPLE_RATE calls of a stage is timed, picked at
+ * random per thread, the others cost a random number instead of two System.nanoTime calls. The pipelined mode
+ * validates whole batches, its validation stage is timed per batch and recorded as the time per row.
+ * Safe to update from several threads. Can be registered as an MXBean and written to a summary file.
+ */
+class ProcessingMetrics implements TransactionProcessorSample.ProcessingMetricsMXBean {
+    public static final int SAMPLE_RATE = 64;
+    private static final String OBJECT_NAME = "com.playtech.assignment:type=ProcessingMetrics";
+
+    enum Stage { PARSE, VALIDATION, IBAN, BIN, WRITE }
+
+    private final LongAdder[] eventCounts = new LongAdder[EventReason.values().length];
+    private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+    private final long startNanos = System.nanoTime();
+    private volatile long finishNanos;
+
+    public ProcessingMetrics() {
+        for (int i = 0; i < eventCounts.length; i++) {
+            eventCounts[i] = new LongAdder();
+        }
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    // Returns the start time when this call is sampled, 0 when it is not
+    public long start() {
+        return (ThreadLocalRandom.current().nextInt() & (SAMPLE_RATE - 1)) == 0 ? System.nanoTime() : 0;
+    }
+
+    public void stop(Stage stage, long start) {
+        if (start != 0) {
+            stages[stage.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    // Records the time of a whole batch as one sample of the time per row, for stages that work on batches
+    public void stopBatch(Stage stage, long start, int rows) {
+        if (rows > 0) {
+            stages[stage.ordinal()].record((System.nanoTime() - start) / rows);
+        }
+    }
+
+    public void count(EventReason reason) {
+        eventCounts[reason.ordinal()].increment();
+    }
+
+    // Stops the clock used for the rows per second
+    public void finish() {
+        finishNanos = System.nanoTime();
+    }
+
+    @Override
+    public long getRows() {
+        long rows = 0;
+        for (LongAdder count : eventCounts) {
+            rows += count.sum();
+        }
+        return rows;
+    }
+
+    @Override
+    public double getRowsPerSecond() {
+        long end = finishNanos != 0 ? finishNanos : System.nanoTime();
+        return getRows() * 1e9 / Math.max(1, end - startNanos);
+    }
+
+    @Override
+    public Map<String, Long> getEventCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (EventReason reason : EventReason.values()) {
+            counts.put(reason.name(), eventCounts[reason.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getStageMeanNanos() {
+        Map<String, Long> means = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            means.put(stage.name(), stages[stage.ordinal()].mean());
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Long> getStageP99Nanos() {
+        Map<String, Long> percentiles = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            percentiles.put(stage.name(), stages[stage.ordinal()].percentile(0.99));
+        }
+        return percentiles;
+    }
+
+    @Override
+    public Map<String, Long> getStageMaxNanos() {
+        Map<String, Long> maximums = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            maximums.put(stage.name(), stages[stage.ordinal()].max());
+        }
+        return maximums;
+    }
+
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the processing metrics", e);
+        }
+    }
+
+    public void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not unregister the processing metrics", e);
+        }
+    }
+
+    // Writes the rows, throughput, event counts and stage latencies as a plain text report
+    public void writeSummary(Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            writer.write(String.format(Locale.ROOT, "rows: %d%n", getRows()));
+            writer.write(String.format(Locale.ROOT, "rows per second: %.0f%n", getRowsPerSecond()));
+            writer.write(String.format(Locale.ROOT, "%nevents%n"));
+            for (EventReason reason : EventReason.values()) {
+                writer.write(String.format(Locale.ROOT, "  %-24s %12d%n", reason.name(), eventCounts[reason.ordinal()].sum()));
+            }
+            writer.write(String.format(Locale.ROOT, "%nstage latency in ns, 1 in %d calls sampled%n", SAMPLE_RATE));
+            writer.write(String.format(Locale.ROOT, "  %-24s %12s %12s %12s %12s %12s%n", "stage", "samples", "mean", "p50", "p99", "max"));
+            for (Stage stage : Stage.values()) {
+                LatencyHistogram histogram = stages[stage.ordinal()];
+                writer.write(String.format(Locale.ROOT, "  %-24s %12d %12d %12d %12d %12d%n", stage.name(), histogram.count(), histogram.mean(),
+                        histogram.percentile(0.5), histogram.percentile(0.99), histogram.max()));
+            }
+        }
+    }
+
+    /**
+     * Histogram of durations in power of two buckets, bucket i counts durations of 2^(i-1) up to 2^i - 1 ns, so a
+     * percentile is known to within a factor of two and is reported as the upper end of its bucket.
+     */
+    private static final class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanos));
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        long mean() {
+            long count = count();
+            return count == 0 ? 0 : totalNanos.sum() / count;
+        }
+
+        long max() {
+            return maxNanos.get();
+        }
+
+        long percentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * count());
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : Math.min(max(), i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1);
+                }
+            }
+            return 0;
+        }
+    }
+}
+
+
+/**
+ * Reader for the simplified csv files (no quotes or commas within a column) that memory maps the file and scans the
+ * mapped bytes for commas and line breaks. A row is kept as field offsets into the mapping, fields only become Strings
+ * when asked for and numbers are parsed straight from the bytes.
+ * Files larger than one mapping window are mapped window by window, a row crossing the end of a window is read again
+ * from a new window starting at the row.
+ */
+class MappedCsvReader implements Closeable {
+    private static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+    private static final int MAX_FIELDS = 32;
+
+    // null when reading content that is already in memory
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long windowSize;
+    private ByteBuffer window;
+    private long windowStart;
+    private int position;
+    private final int[] fieldStarts = new int[MAX_FIELDS];
+    private final int[] fieldEnds = new int[MAX_FIELDS];
+    private int fieldCount;
+    private long rowOffset;
+    // false until a row is read
+    private boolean rowTerminated;
+    private byte[] scratch = new byte[64];
+
+    public MappedCsvReader(Path path) throws IOException {
+        this(path, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedCsvReader(Path path, long windowSize) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.windowSize = Math.min(windowSize, Integer.MAX_VALUE);
+        map(0);
+    }
+
+    // Reads csv content that is already in memory, such as a request body, as one window
+    public MappedCsvReader(ByteBuffer content) {
+        this.channel = null;
+        this.fileSize = content.limit();
+        this.windowSize = fileSize;
+        this.window = content;
+    }
+
+    private void map(long start) throws IOException {
+        if (channel == null) {
+            // all of the content is in the window
+            position = (int) start;
+            return;
+        }
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, fileSize - start));
+        position = 0;
+    }
+
+    /**
+     * Moves to the next row.
+     * @return false if the end of the file is reached
+     */
+    public boolean nextRow() throws IOException {
+        if (windowStart + position >= fileSize) {
+            return false;
+        }
+        int limit = window.limit();
+        int start = position;
+        int i = scanRow(start, limit);
+        if (i == limit && windowStart + limit < fileSize) {
+            // the row continues after this window, map the next window from the start of the row
+            map(windowStart + start);
+            limit = window.limit();
+            i = scanRow(0, limit);
+            if (i == limit && windowStart + limit < fileSize) {
+                throw new IOException("Row at offset " + windowStart + " is longer than the mapping window");
+            }
+        }
+        rowOffset = windowStart + start;
+        rowTerminated = i < limit;
+        position = i < limit ? i + 1 : limit;
+        return true;
+    }
+
+    // Splits the row starting at the given window position into fields, returns the position of the line break
+    private int scanRow(int start, int limit) {
+        ByteBuffer buffer = window;
+        int count = 0;
+        int fieldStart = start;
+        int i = start;
+        for (; i < limit; i++) {
+            byte b = buffer.get(i);
+            if (b == ',') {
+                if (count < MAX_FIELDS) {
+                    fieldStarts[count] = fieldStart;
+                    fieldEnds[count++] = i;
+                }
+                fieldStart = i + 1;
+            } else if (b == '\n') {
+                break;
+            }
+        }
+        int end = i;
+        if (end > fieldStart && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        if (count < MAX_FIELDS) {
+            fieldStarts[count] = fieldStart;
+            fieldEnds[count++] = end;
+        }
+        fieldCount = count;
+        return i;
+    }
+
+    // Moves to the row starting at the file offset
+    public void seek(long offset) throws IOException {
+        if (offset > fileSize) {
+            throw new IOException("Offset " + offset + " is past the end of the file");
+        }
+        map(offset);
+    }
+
+    // File offset of the next row
+    public long offset() {
+        return windowStart + position;
+    }
+
+    // File offset of the current row
+    public long rowOffset() {
+        return rowOffset;
+    }
+
+    // Whether the current row ends with a line break, the last row of a file may not
+    public boolean rowEndsWithLineBreak() {
+        return rowTerminated;
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    private int start(int field) {
+        if (field >= fieldCount) {
+            throw new ArrayIndexOutOfBoundsException("Row has no field " + field);
+        }
+        return fieldStarts[field];
+    }
+
+    public String field(int field) {
+        int start = start(field);
+        int length = fieldEnds[field] - start;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        window.get(start, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Returns the constant equal to the field if there is one, so that the common values are not allocated for every row
+    public String field(int field, String... constants) {
+        for (String constant : constants) {
+            if (fieldEquals(field, constant)) {
+                return constant;
+            }
+        }
+        return field(field);
+    }
+
+    public int fieldLength(int field) {
+        return fieldEnds[field] - start(field);
+    }
+
+    // Copies the bytes of the field, returns false when one of them is not ASCII
+    public boolean copyAsciiField(int field, byte[] destination, int offset) {
+        int start = start(field);
+        int length = fieldEnds[field] - start;
+        window.get(start, destination, offset, length);
+        int bits = 0;
+        for (int i = offset; i < offset + length; i++) {
+            bits |= destination[i];
+        }
+        return bits >= 0;
+    }
+
+    public boolean fieldEquals(int field, String ascii) {
+        int start = start(field);
+        int length = fieldEnds[field] - start;
+        if (length != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (window.get(start + i) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Parses an integer field, anything that is not plain digits goes through Long.parseLong for the same result and errors
+    public long fieldAsLong(int field) {
+        int start = start(field);
+        int end = fieldEnds[field];
+        if (end == start || end - start > 18) {
+            return Long.parseLong(field(field));
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = window.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.parseLong(field(field));
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Whether fieldAsAmount gives the amount of the field exactly, see Money.isExact. Only amounts with more than two
+     * decimals, more than 16 whole digits or an exponent are parsed for it.
+     */
+    public boolean fieldIsExactAmount(int field) {
+        int start = start(field);
+        int end = fieldEnds[field];
+        int point = end;
+        for (int i = start; i < end; i++) {
+            byte b = window.get(i);
+            if (b == '.') {
+                point = i;
+            } else if (b == 'e' || b == 'E') {
+                return Money.isExact(field(field));
+            }
+        }
+        return end - point <= 3 && point - start <= 16 || Money.isExact(field(field));
+    }
+
+    /**
+     * Parses an amount into cents straight from the bytes. Amounts that are not plain digits with at most two decimals
+     * go through Money.parse.
+     */
+    public long fieldAsAmount(int field) {
+        int start = start(field);
+        int end = fieldEnds[field];
+        int i = start;
+        boolean negative = false;
+        if (i < end && (window.get(i) == '-' || window.get(i) == '+')) {
+            negative = window.get(i) == '-';
+            i++;
+        }
+        long cents = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < end; i++) {
+            byte b = window.get(i);
+            if (b >= '0' && b <= '9') {
+                cents = cents * 10 + (b - '0');
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                return Money.parse(field(field));
+            }
+        }
+        if (digits == 0 || digits > 16 || decimals > 2) {
+            return Money.parse(field(field));
+        }
+        for (int d = Math.max(decimals, 0); d < 2; d++) {
+            cents *= 10;
+        }
+        return negative ? -cents : cents;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
+
+class Transaction {
+    public String transactionId;
+    public String userId;
+    public String type;
+    public long amount; // in cents
+    public String method;
+    public String accountNumber;
+    // the amount as written when it has a part below a cent or is beyond the range of a long in cents, amount is then
+    // rounded and clamped from it; null when amount is exact
+    public String exactAmount;
+
+    public Transaction(String transactionId, String userId, String type, long amount, String method, String accountNumber) {
+        this(transactionId, userId, type, amount, method, accountNumber, null);
+    }
+
+    public Transaction(String transactionId, String userId, String type, long amount, String method, String accountNumber, String exactAmount) {
+        this.transactionId = transactionId;
+        this.userId = userId;
+        this.type = type;
+        this.amount = amount;
+        this.method = method;
+        this.accountNumber = accountNumber;
+        this.exactAmount = exactAmount;
+    }
+
+    // Compares the amount with an amount in cents, an amount that is not exact in cents is compared as written
+    public int compareAmountTo(long cents) {
+        return exactAmount == null ? Long.compare(amount, cents) : new BigDecimal(exactAmount).compareTo(BigDecimal.valueOf(cents, 2));
+    }
+}
+
+class BinMapping {
+    public String name;
+    public long rangeFrom;
+    public long rangeTo;
+    public String type;
+    public String country;
+
+    public BinMapping(String name, long rangeFrom, long rangeTo, String type, String country) {
+        this.name = name;
+        this.rangeFrom = rangeFrom;
+        this.rangeTo = rangeTo;
+        this.type = type;
+        this.country = country;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
+
+/**
+ * IBAN validation without creating any objects. Checks the format (country code, check digits and an alphanumeric
+ * account part), the length registered for the country and the check digits. The mod 97 of the rearranged IBAN from
+ * the algorithm on the Wikipedia page is computed digit by digit in an int instead of building a BigInteger.
+ */
+final class Iban {
+    private static final int MAX_LENGTH = 34;
+    private static final int MIN_LENGTH = 5;
+    // IBAN length by country code, indexed by the two letters, 0 for countries that are not in the IBAN registry
+    private static final byte[] LENGTHS = new byte[26 * 26];
+
+    static {
+        String registry = "AD24 AE23 AL28 AT20 AZ28 BA20 BE16 BG22 BH22 BI27 BR29 BY28 CH21 CR22 CY28 CZ24 DE22 DJ27 DK18 "
+                + "DO28 EE20 EG29 ES24 FI18 FK18 FO18 FR27 GB22 GE22 GI23 GL18 GR27 GT28 HR21 HU28 IE22 IL23 IQ23 IS26 IT27 "
+                + "JO30 KW30 KZ20 LB28 LC32 LI21 LT20 LU20 LV21 LY25 MC27 MD24 ME22 MK19 MN20 MR27 MT31 MU30 NI28 NL18 NO15 "
+                + "OM23 PK24 PL28 PS29 PT25 QA29 RO24 RS22 RU33 SA24 SC31 SD18 SE24 SI19 SK24 SM27 SO23 ST25 SV28 TL23 TN24 "
+                + "TR26 UA29 VA22 VG24 XK20 YE30";
+        for (String entry : registry.split(" ")) {
+            LENGTHS[(entry.charAt(0) - 'A') * 26 + entry.charAt(1) - 'A'] = Byte.parseByte(entry.substring(2));
+        }
+    }
+
+    private Iban() {
+    }
+
+    public static boolean isValid(String iban) {
+        int length = iban.length();
+        if (length < MIN_LENGTH || length > MAX_LENGTH) {
+            return false;
+        }
+        char first = iban.charAt(0);
+        char second = iban.charAt(1);
+        if (first < 'A' || first > 'Z' || second < 'A' || second > 'Z' || !isDigit(iban.charAt(2)) || !isDigit(iban.charAt(3))) {
+            return false;
+        }
+        // countries outside the registry are only held to the general maximum length
+        int registeredLength = LENGTHS[(first - 'A') * 26 + second - 'A'];
+        if (registeredLength != 0 && registeredLength != length) {
+            return false;
+        }
+        // validate the transfer account number's check digit validity, the first four characters are moved to the end
+        int remainder = 0;
+        for (int i = 4; i < length + 4; i++) {
+            int value = numericValue(iban.charAt(i < length ? i : i - length));
+            if (value < 0) {
+                return false;
+            }
+            remainder = (value < 10 ? remainder * 10 + value : remainder * 100 + value) % 97;
+        }
+        return remainder == 1;
+    }
+
+    // The same check for an IBAN given as a slice of ASCII bytes
+    public static boolean isValid(byte[] bytes, int start, int length) {
+        if (length < MIN_LENGTH || length > MAX_LENGTH) {
+            return false;
+        }
+        int first = bytes[start];
+        int second = bytes[start + 1];
+        if (first < 'A' || first > 'Z' || second < 'A' || second > 'Z' || !isDigit(bytes[start + 2]) || !isDigit(bytes[start + 3])) {
+            return false;
+        }
+        int registeredLength = LENGTHS[(first - 'A') * 26 + second - 'A'];
+        if (registeredLength != 0 && registeredLength != length) {
+            return false;
+        }
+        int remainder = 0;
+        for (int i = 4; i < length + 4; i++) {
+            int value = numericValue(bytes[start + (i < length ? i : i - length)]);
+            if (value < 0) {
+                return false;
+            }
+            remainder = (value < 10 ? remainder * 10 + value : remainder * 100 + value) % 97;
+        }
+        return remainder == 1;
+    }
+
+    private static boolean isDigit(int ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    // Digits are worth their value and letters 10 to 35, -1 for any other character
+    private static int numericValue(int ch) {
+        if (ch >= '0' && ch <= '9') {
+            return ch - '0';
+        }
+        if (ch >= 'A' && ch <= 'Z') {
+            return ch - 'A' + 10;
+        }
+        if (ch >= 'a' && ch <= 'z') {
+            return ch - 'a' + 10;
+        }
+        return -1;
+    }
+}
+
+/**
+ * Bin mapping ranges in sorted primitive arrays, so the range of a card number is found with a binary search.
+ * Overlapping mappings are split at every range boundary into non-overlapping ranges. For every range it keeps the
+ * outcome of checking the mappings covering it in file order, like the former loop over all mappings did:
+ * a debit mapping of another country declines the card for its country, and the first non-debit mapping declines it
+ * for its type, the mappings after that one are never reached.
+ */
+class BinTable {
+    // country of a range covered by debit mappings of different countries, it never matches the user's country
+    private static final String MIXED_COUNTRIES = "";
+    // written in place of a string index for MIXED_COUNTRIES
+    private static final int MIXED_COUNTRIES_INDEX = -2;
+    // below any prefix of ten characters
+    public static final long INVALID_PREFIX = Long.MIN_VALUE;
+
+    private final long[] rangeFrom;
+    private final long[] rangeTo;
+    // country of the debit mappings covering the range before the first non-debit one, null if there are none
+    private final String[] countries;
+    // type of the first non-debit mapping covering the range, null if there is none
+    private final String[] nonDebitTypes;
+
+    // Reads the ranges written by writeTo, strings are given by their index
+    BinTable(ByteBuffer image, int ranges, String[] strings) {
+        rangeFrom = new long[ranges];
+        rangeTo = new long[ranges];
+        countries = new String[ranges];
+        nonDebitTypes = new String[ranges];
+        for (int i = 0; i < ranges; i++) {
+            rangeFrom[i] = image.getLong();
+            rangeTo[i] = image.getLong();
+            int country = image.getInt();
+            countries[i] = country == MIXED_COUNTRIES_INDEX ? MIXED_COUNTRIES : ReferenceData.string(strings, country);
+            nonDebitTypes[i] = ReferenceData.string(strings, image.getInt());
+        }
+    }
+
+    public BinTable(List<BinMapping> binMappings) {
+        long[] bounds = new long[binMappings.size() * 2];
+        int count = 0;
+        for (BinMapping binMapping : binMappings) {
+            if (binMapping.rangeFrom <= binMapping.rangeTo) {
+                bounds[count++] = binMapping.rangeFrom;
+                if (binMapping.rangeTo != Long.MAX_VALUE) {
+                    bounds[count++] = binMapping.rangeTo + 1;
+                }
+            }
+        }
+        Arrays.sort(bounds, 0, count);
+        int segments = 0;
+        for (int i = 0; i < count; i++) {
+            if (segments == 0 || bounds[segments - 1] != bounds[i]) {
+                bounds[segments++] = bounds[i];
+            }
+        }
+        // segment i covers bounds[i] up to the next bound, or up to Long.MAX_VALUE for the last one
+        boolean[] covered = new boolean[segments];
+        String[] segmentCountries = new String[segments];
+        String[] segmentTypes = new String[segments];
+        for (BinMapping binMapping : binMappings) {
+            if (binMapping.rangeFrom > binMapping.rangeTo) {
+                continue;
+            }
+            for (int i = Arrays.binarySearch(bounds, 0, segments, binMapping.rangeFrom); i < segments && bounds[i] <= binMapping.rangeTo; i++) {
+                covered[i] = true;
+                if (segmentTypes[i] != null) {
+                    continue;
+                }
+                if (!binMapping.type.equals("DC")) {
+                    segmentTypes[i] = binMapping.type;
+                } else if (segmentCountries[i] == null) {
+                    segmentCountries[i] = binMapping.country;
+                } else if (!segmentCountries[i].equals(binMapping.country)) {
+                    segmentCountries[i] = MIXED_COUNTRIES;
+                }
+            }
+        }
+        int ranges = 0;
+        for (int i = 0; i < segments; i++) {
+            if (covered[i]) {
+                ranges++;
+            }
+        }
+        rangeFrom = new long[ranges];
+        rangeTo = new long[ranges];
+        countries = new String[ranges];
+        nonDebitTypes = new String[ranges];
+        int range = 0;
+        for (int i = 0; i < segments; i++) {
+            if (covered[i]) {
+                rangeFrom[range] = bounds[i];
+                rangeTo[range] = i + 1 < segments ? bounds[i + 1] - 1 : Long.MAX_VALUE;
+                countries[range] = segmentCountries[i];
+                nonDebitTypes[range] = segmentTypes[i];
+                range++;
+            }
+        }
+    }
+
+    /**
+     * Parses the first 10 characters of the card number like Long.parseLong(accountNumber.substring(0, 10)) without
+     * creating the substring, and throws the same kind of exceptions for a short or non-numeric card number.
+     */
+    public static long cardPrefix(String accountNumber) {
+        if (accountNumber.length() < 10) {
+            throw new StringIndexOutOfBoundsException("Card number " + accountNumber + " is too short");
+        }
+        int i = 0;
+        char first = accountNumber.charAt(0);
+        boolean negative = first == '-';
+        if (negative || first == '+') {
+            i++;
+        }
+        long value = 0;
+        for (; i < 10; i++) {
+            int digit = Character.digit(accountNumber.charAt(i), 10);
+            if (digit < 0) {
+                throw new NumberFormatException("Card number " + accountNumber + " is not numeric");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    // The same for a card number given as a slice of ASCII bytes, INVALID_PREFIX where cardPrefix would throw
+    public static long cardPrefix(byte[] bytes, int start, int length) {
+        if (length < 10) {
+            return INVALID_PREFIX;
+        }
+        int i = 0;
+        byte first = bytes[start];
+        boolean negative = first == '-';
+        if (negative || first == '+') {
+            i++;
+        }
+        long value = 0;
+        for (; i < 10; i++) {
+            int digit = bytes[start + i] - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID_PREFIX;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    // Returns the index of the range containing the number, or -1 if no bin mapping covers it
+    public int find(long number) {
+        int low = 0;
+        int high = rangeFrom.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (rangeFrom[mid] > number) {
+                high = mid - 1;
+            } else if (rangeTo[mid] < number) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // Whether the debit mappings of the range are of the given alpha-3 country
+    public boolean matchesCountry(int range, String country) {
+        return countries[range] == null || countries[range] != MIXED_COUNTRIES && countries[range].equals(country);
+    }
+
+    public String nonDebitType(int range) {
+        return nonDebitTypes[range];
+    }
+
+    public int size() {
+        return rangeFrom.length;
+    }
+
+    // Writes the start, end, country and non-debit type of every range, the strings as their index
+    void writeTo(DataOutputStream out, ToIntFunction<String> stringIndex) throws IOException {
+        for (int i = 0; i < rangeFrom.length; i++) {
+            out.writeLong(rangeFrom[i]);
+            out.writeLong(rangeTo[i]);
+            out.writeInt(countries[i] == MIXED_COUNTRIES ? MIXED_COUNTRIES_INDEX : stringIndex.applyAsInt(countries[i]));
+            out.writeInt(stringIndex.applyAsInt(nonDebitTypes[i]));
+        }
+    }
+}
+
+/**
+ * Alpha-2 to alpha-3 country codes. The alpha-3 code of every alpha-2 code is kept in a 26x26 array at the index
+ * given by the two letters, so a lookup is two character checks and an array read.
+ */
+final class CountryTable {
+    private static final int SIZE = 26 * 26;
+
+    private final String[] alpha3Codes = new String[SIZE];
+
+    public CountryTable() {
+    }
+
+    // Reads the table written by writeTo, strings are given by their index
+    CountryTable(ByteBuffer image, String[] strings) {
+        for (int i = 0; i < SIZE; i++) {
+            alpha3Codes[i] = ReferenceData.string(strings, image.getInt());
+        }
+    }
+
+    // Codes that are not two uppercase letters are not country codes, they are left out
+    public void put(String alpha2, String alpha3) {
+        int index = index(alpha2);
+        if (index >= 0) {
+            alpha3Codes[index] = alpha3;
+        }
+    }
+
+    // Returns the alpha-3 code, or null if the alpha-2 code is unknown
+    public String get(String alpha2) {
+        int index = index(alpha2);
+        return index < 0 ? null : alpha3Codes[index];
+    }
+
+    // Writes the index of the alpha-3 code of every alpha-2 code, in the order of the array
+    void writeTo(DataOutputStream out, ToIntFunction<String> stringIndex) throws IOException {
+        for (String alpha3 : alpha3Codes) {
+            out.writeInt(stringIndex.applyAsInt(alpha3));
+        }
+    }
+
+    private static int index(String alpha2) {
+        if (alpha2 == null || alpha2.length() != 2) {
+            return -1;
+        }
+        int first = alpha2.charAt(0) - 'A';
+        int second = alpha2.charAt(1) - 'A';
+        if (first < 0 || first >= 26 || second < 0 || second >= 26) {
+            return -1;
+        }
+        return first * 26 + second;
+    }
+}
+
+
+/**
+ * Outcome of a transaction. Keeps the reason and its arguments, the message text is only produced when the event is
+ * written or asked for.
+ */
+class Event {
+    public static final String STATUS_DECLINED = "DECLINED";
+    public static final String STATUS_APPROVED = "APPROVED";
+
+    public String transactionId;
+    public String status;
+    public EventReason reason;
+    public String detail;
+    public long amount;
+    public long limit;
+
+    public Event(String transactionId, EventReason reason) {
+        this(transactionId, reason, null, 0, 0);
+    }
+
+    public Event(String transactionId, EventReason reason, String detail) {
+        this(transactionId, reason, detail, 0, 0);
+    }
+
+    public Event(String transactionId, EventReason reason, long amount) {
+        this(transactionId, reason, null, amount, 0);
+    }
+
+    public Event(String transactionId, EventReason reason, long amount, long limit) {
+        this(transactionId, reason, null, amount, limit);
+    }
+
+    private Event(String transactionId, EventReason reason, String detail, long amount, long limit) {
+        this.transactionId = transactionId;
+        this.status = reason.status;
+        this.reason = reason;
+        this.detail = detail;
+        this.amount = amount;
+        this.limit = limit;
+    }
+}
+
+/**
+ * Reasons for the events with their message templates. A template is split once into literal parts, kept as
+ * pre-encoded bytes, and the arguments between them: {id} for the transaction id, {detail} for the text detail of
+ * the event, {amount} and {limit} for its money amounts.
+ */
+enum EventReason {
+    APPROVED(Event.STATUS_APPROVED, "OK"),
+    DUPLICATE_TRANSACTION(Event.STATUS_DECLINED, "Transaction {id} already processed (id non-unique)"),
+    USER_NOT_FOUND(Event.STATUS_DECLINED, "User {detail} not found in Users"),
+    USER_FROZEN(Event.STATUS_DECLINED, "User {detail} is frozen"),
+    INVALID_AMOUNT(Event.STATUS_DECLINED, "Amount {amount} is invalid"),
+    UNDER_DEPOSIT_LIMIT(Event.STATUS_DECLINED, "Amount {amount} is under the deposit limit of {limit}"),
+    OVER_DEPOSIT_LIMIT(Event.STATUS_DECLINED, "Amount {amount} is over the deposit limit of {limit}"),
+    UNDER_WITHDRAW_LIMIT(Event.STATUS_DECLINED, "Amount {amount} is under the withdraw limit of {limit}"),
+    OVER_WITHDRAW_LIMIT(Event.STATUS_DECLINED, "Amount {amount} is over the withdraw limit of {limit}"),
+    SUB_CENT_AMOUNT(Event.STATUS_DECLINED, "Amount {detail} has more than two decimals"),
+    AMOUNT_OUT_OF_RANGE(Event.STATUS_DECLINED, "Amount {detail} is out of range"),
+    INSUFFICIENT_BALANCE(Event.STATUS_DECLINED, "Not enough balance for withdrawal {amount} - balance is too low at {limit}"),
+    NEW_WITHDRAW_ACCOUNT(Event.STATUS_DECLINED, "Cannot withdraw with a new account {detail}"),
+    UNSUPPORTED_TYPE(Event.STATUS_DECLINED, "Type {detail} is not supported"),
+    UNSUPPORTED_METHOD(Event.STATUS_DECLINED, "Method {detail} is not supported"),
+    INVALID_IBAN(Event.STATUS_DECLINED, "Invalid iban {detail}"),
+    ACCOUNT_COUNTRY_MISMATCH(Event.STATUS_DECLINED, "Country of the account used for the transaction doesn't match the user's country, expected {detail}"),
+    CARD_COUNTRY_MISMATCH(Event.STATUS_DECLINED, "Country of the card used for the transaction doesn't match the user's country, expected {detail}"),
+    CARD_NOT_DEBIT(Event.STATUS_DECLINED, "Only DC cards allowed. Got {detail} card type."),
+    ACCOUNT_IN_USE(Event.STATUS_DECLINED, "Account {detail} is in use by another user"),
+    PROCESSING_ERROR(Event.STATUS_DECLINED, "Error processing transaction {id}");
+
+    static final int NONE = 0;
+    static final int ID = 1;
+    static final int DETAIL = 2;
+    static final int AMOUNT = 3;
+    static final int LIMIT = 4;
+
+    public final String status;
+    // the message is bytes[0] arguments[0] bytes[1] arguments[1] ..., the last argument is NONE
+    final byte[][] bytes;
+    final int[] arguments;
+    // ",status," part of the event line that follows the transaction id
+    final byte[] statusBytes;
+
+    EventReason(String status, String template) {
+        this.status = status;
+        List<String> textList = new ArrayList<>();
+        List<Integer> argumentList = new ArrayList<>();
+        int from = 0;
+        while (true) {
+            int next = template.indexOf('{', from);
+            int argument = NONE;
+            for (int i = ID; next >= 0 && i <= LIMIT; i++) {
+                if (template.startsWith(placeholder(i), next)) {
+                    argument = i;
+                }
+            }
+            if (argument == NONE) {
+                textList.add(template.substring(from));
+                argumentList.add(NONE);
+                break;
+            }
+            textList.add(template.substring(from, next));
+            argumentList.add(argument);
+            from = next + placeholder(argument).length();
+        }
+        this.arguments = argumentList.stream().mapToInt(Integer::intValue).toArray();
+        this.bytes = new byte[textList.size()][];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = textList.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        this.statusBytes = ("," + status + ",").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String placeholder(int argument) {
+        return switch (argument) {
+            case ID -> "{id}";
+            case DETAIL -> "{detail}";
+            case AMOUNT -> "{amount}";
+            case LIMIT -> "{limit}";
+            default -> throw new IllegalArgumentException("No placeholder for argument " + argument);
+        };
+    }
+}
+
+/**
+ * Writes events.csv by encoding every event straight into one large reusable byte buffer, which is flushed through a
+ * FileChannel when it fills up. Messages are put together from the pre-encoded parts of their EventReason.
+ */
+class EventWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final byte[] HEADER = "transaction_id,status,message\n".getBytes(StandardCharsets.UTF_8);
+    private static final EventReason[] REASONS = EventReason.values();
+
+    private final WritableByteChannel channel;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private ByteBuffer output = ByteBuffer.wrap(buffer);
+    private int position;
+    // bytes written to the channel, including the ones before a resumed file was opened
+    private long flushed;
+
+    // Creates the events file, replacing an existing one, and writes the header
+    public EventWriter(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        put(HEADER);
+    }
+
+    // Continues an existing events file after its first length bytes, anything written after them is cut off
+    public EventWriter(Path path, long length) throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE);
+        if (file.size() < length) {
+            file.close();
+            throw new IOException("Events file " + path + " is shorter than the " + length + " bytes written before");
+        }
+        file.truncate(length);
+        file.position(length);
+        this.channel = file;
+        flushed = length;
+    }
+
+    // Writes the header and the events to a stream, such as the body of a response, closing the writer closes the stream
+    public EventWriter(OutputStream out) throws IOException {
+        this.channel = Channels.newChannel(out);
+        put(HEADER);
+    }
+
+    // Number of bytes written so far, including the ones still in the buffer
+    public long length() {
+        return flushed + position;
+    }
+
+    public void write(Event event) throws IOException {
+        EventReason reason = event.reason;
+        put(event.transactionId);
+        put(reason.statusBytes);
+        for (int i = 0; i < reason.arguments.length; i++) {
+            put(reason.bytes[i]);
+            switch (reason.arguments[i]) {
+                case EventReason.ID -> put(event.transactionId);
+                case EventReason.DETAIL -> put(event.detail);
+                case EventReason.AMOUNT -> putMoney(event.amount);
+                case EventReason.LIMIT -> putMoney(event.limit);
+                default -> {
+                }
+            }
+        }
+        ensureCapacity(1);
+        buffer[position++] = '\n';
+    }
+
+    // Writes the event of a row of a validated batch, the same bytes as write(Event) for the event of the row
+    public void write(TransactionBatch batch, int row) throws IOException {
+        Event fallback = batch.fallbackEvents[row];
+        if (fallback != null) {
+            write(fallback);
+            return;
+        }
+        EventReason reason = REASONS[batch.reasons[row]];
+        putField(batch, row, TransactionBatch.ID);
+        put(reason.statusBytes);
+        for (int i = 0; i < reason.arguments.length; i++) {
+            put(reason.bytes[i]);
+            switch (reason.arguments[i]) {
+                case EventReason.ID -> putField(batch, row, TransactionBatch.ID);
+                case EventReason.DETAIL -> {
+                    if (batch.detailTexts[row] != null) {
+                        put(batch.detailTexts[row]);
+                    } else {
+                        putField(batch, row, batch.detailFields[row]);
+                    }
+                }
+                case EventReason.AMOUNT -> putMoney(batch.amounts[row]);
+                case EventReason.LIMIT -> putMoney(batch.limits[row]);
+                default -> {
+                }
+            }
+        }
+        ensureCapacity(1);
+        buffer[position++] = '\n';
+    }
+
+    private void putField(TransactionBatch batch, int row, int field) throws IOException {
+        int length = batch.length(row, field);
+        ensureCapacity(length);
+        System.arraycopy(batch.bytes, batch.start(row, field), buffer, position, length);
+        position += length;
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    // Encodes the text as UTF-8 into the buffer, ASCII characters are copied one byte each
+    private void put(String text) throws IOException {
+        int length = text.length();
+        ensureCapacity(length * 3);
+        byte[] bytes = buffer;
+        int pos = position;
+        for (int i = 0; i < length; i++) {
+            char ch = text.charAt(i);
+            if (ch < 0x80) {
+                bytes[pos++] = (byte) ch;
+            } else if (ch < 0x800) {
+                bytes[pos++] = (byte) (0xC0 | ch >> 6);
+                bytes[pos++] = (byte) (0x80 | ch & 0x3F);
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(ch, text.charAt(++i));
+                bytes[pos++] = (byte) (0xF0 | codePoint >> 18);
+                bytes[pos++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                bytes[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                bytes[pos++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(ch)) {
+                bytes[pos++] = '?';
+            } else {
+                bytes[pos++] = (byte) (0xE0 | ch >> 12);
+                bytes[pos++] = (byte) (0x80 | ch >> 6 & 0x3F);
+                bytes[pos++] = (byte) (0x80 | ch & 0x3F);
+            }
+        }
+        position = pos;
+    }
+
+    private void putMoney(long cents) throws IOException {
+        ensureCapacity(Money.MAX_LENGTH);
+        position = Money.write(buffer, position, cents);
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (buffer.length - position < length) {
+            flush();
+            if (buffer.length < length) {
+                buffer = new byte[length];
+                output = ByteBuffer.wrap(buffer);
+            }
+        }
+    }
+
+    public void flush() throws IOException {
+        output.clear().limit(position);
+        while (output.hasRemaining()) {
+            channel.write(output);
+        }
+        flushed += position;
+        position = 0;
+    }
+
+    // Flushes the buffer and forces the written events to the storage device, when writing to a file
+    public void sync() throws IOException {
+        flush();
+        if (channel instanceof FileChannel file) {
+            file.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.playtech.assignment;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+
+/**
+ * Generates users.csv, bins.csv and transactions.csv in the input format of TransactionProcessorSample, for benchmarks
+ * at production scale. The decline ratio is the share of transactions built to fail one of the validations, like the
+ * "50% validations" and "75% validations" test data sets. The other transactions are built to be approved: deposits
+ * within the user's limits and withdrawals from accounts the user has deposited with.
+ * <p>
+ * Usage: java -cp target/benchmarks.jar com.playtech.assignment.SyntheticDataGenerator
+ * &lt;output directory&gt; &lt;transactions&gt; [decline ratio, default 0.5] [users, default 1000] [bin ranges, default 10000] [seed]
+ */
+public class SyntheticDataGenerator {
+    // alpha-2 and alpha-3 codes and IBAN lengths of the countries the users are from
+    private static final String[][] COUNTRIES = {
+            {"EE", "EST", "20"}, {"LV", "LVA", "21"}, {"LT", "LTU", "20"}, {"FI", "FIN", "18"}, {"DE", "DEU", "22"},
+            {"GB", "GBR", "22"}, {"FR", "FRA", "27"}, {"SE", "SWE", "24"}, {"NO", "NOR", "15"}, {"NL", "NLD", "18"}
+    };
+    private static final long FIRST_BIN = 4_000_000_000L;
+    private static final int BIN_RANGE_SIZE = 100_000;
+    private static final int RECENT_IDS = 1024;
+
+    private final Random random;
+    private final List<GeneratedUser> activeUsers = new ArrayList<>();
+    private final List<GeneratedUser> frozenUsers = new ArrayList<>();
+    // first bin of every range, and the country index and debit flag of the range
+    private long[] binStarts;
+    private int[] binCountries;
+    private boolean[] binDebit;
+    private final String[] recentIds = new String[RECENT_IDS];
+    private long transactionCount;
+
+    public SyntheticDataGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SyntheticDataGenerator <output directory> <transactions> [decline ratio] [users] [bin ranges] [seed]");
+            System.exit(1);
+        }
+        Path directory = Path.of(args[0]);
+        long transactions = Long.parseLong(args[1]);
+        double declineRatio = args.length > 2 ? Double.parseDouble(args[2]) : 0.5;
+        int users = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int binRanges = args.length > 4 ? Integer.parseInt(args[4]) : 10_000;
+        long seed = args.length > 5 ? Long.parseLong(args[5]) : 42;
+        new SyntheticDataGenerator(seed).generate(directory, transactions, declineRatio, users, binRanges);
+    }
+
+    // Writes users.csv, bins.csv and transactions.csv into the directory
+    public void generate(Path directory, long transactions, double declineRatio, int userCount, int binRanges) throws IOException {
+        if (binRanges < 1) {
+            throw new IllegalArgumentException("At least one bin range is needed");
+        }
+        Files.createDirectories(directory);
+        generateBins(directory.resolve("bins.csv"), binRanges);
+        generateUsers(directory.resolve("users.csv"), userCount);
+        try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve("transactions.csv"))) {
+            writer.write("TRANSACTION_ID,USER_ID,TYPE,AMOUNT,METHOD,ACCOUNT_NUMBER\n");
+            StringBuilder line = new StringBuilder();
+            for (long i = 0; i < transactions; i++) {
+                line.setLength(0);
+                if (random.nextDouble() < declineRatio) {
+                    declinedTransaction(line);
+                } else {
+                    approvedTransaction(line);
+                }
+                writer.append(line).append('\n');
+            }
+        }
+    }
+
+    private void generateBins(Path path, int binRanges) throws IOException {
+        binStarts = new long[binRanges];
+        binCountries = new int[binRanges];
+        binDebit = new boolean[binRanges];
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            writer.write("name,range_from,range_to,type,country\n");
+            for (int i = 0; i < binRanges; i++) {
+                binStarts[i] = FIRST_BIN + (long) i * BIN_RANGE_SIZE;
+                binCountries[i] = random.nextInt(COUNTRIES.length);
+                binDebit[i] = random.nextInt(5) != 0;
+                writer.write("Bank " + i + "," + binStarts[i] + "," + (binStarts[i] + BIN_RANGE_SIZE - 1) + "," + (binDebit[i] ? "DC" : "CC") + "," + COUNTRIES[binCountries[i]][1] + "\n");
+            }
+        }
+    }
+
+    private void generateUsers(Path path, int userCount) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            writer.write("USER_ID,USERNAME,BALANCE,COUNTRY,FROZEN,DEPOSIT_MIN,DEPOSIT_MAX,WITHDRAW_MIN,WITHDRAW_MAX\n");
+            for (int i = 0; i < userCount; i++) {
+                GeneratedUser user = new GeneratedUser();
+                user.userId = uuid();
+                user.country = random.nextInt(COUNTRIES.length);
+                user.balance = random.nextInt(1_000_000);
+                user.frozen = random.nextInt(50) == 0;
+                user.minDeposit = 100 + random.nextInt(900);
+                user.maxDeposit = user.minDeposit + 100_000 + random.nextInt(900_000);
+                user.minWithdraw = 100 + random.nextInt(900);
+                user.maxWithdraw = user.minWithdraw + 100_000 + random.nextInt(400_000);
+                (user.frozen ? frozenUsers : activeUsers).add(user);
+                writer.write(user.userId + ",user" + i + "," + Money.format(user.balance) + "," + COUNTRIES[user.country][0] + "," + (user.frozen ? 1 : 0) + ","
+                        + Money.format(user.minDeposit) + "," + Money.format(user.maxDeposit) + "," + Money.format(user.minWithdraw) + "," + Money.format(user.maxWithdraw) + "\n");
+            }
+        }
+        if (activeUsers.isEmpty()) {
+            throw new IllegalArgumentException("At least one user that is not frozen is needed");
+        }
+    }
+
+    // A deposit within the limits, or a withdrawal within the limits and balance from an account the user deposited with
+    private void approvedTransaction(StringBuilder line) {
+        GeneratedUser user = activeUsers.get(random.nextInt(activeUsers.size()));
+        boolean withdraw = !user.accounts.isEmpty() && user.balance >= user.minWithdraw && random.nextInt(5) < 2;
+        if (withdraw) {
+            long amount = amountBetween(user.minWithdraw, Math.min(user.maxWithdraw, user.balance));
+            user.balance -= amount;
+            append(line, newId(), user.userId, "WITHDRAW", amount, user.accounts.get(random.nextInt(user.accounts.size())));
+            return;
+        }
+        long amount = amountBetween(user.minDeposit, user.maxDeposit);
+        String account;
+        if (!user.accounts.isEmpty() && random.nextInt(10) < 7) {
+            account = user.accounts.get(random.nextInt(user.accounts.size()));
+        } else {
+            account = random.nextBoolean() ? iban(user.country) : card(user.country, true);
+            user.accounts.add(account);
+        }
+        user.balance += amount;
+        append(line, newId(), user.userId, "DEPOSIT", amount, account);
+    }
+
+    // A transaction that fails one of the validations, spread evenly over the decline reasons
+    private void declinedTransaction(StringBuilder line) {
+        GeneratedUser user = activeUsers.get(random.nextInt(activeUsers.size()));
+        long deposit = amountBetween(user.minDeposit, user.maxDeposit);
+        String ownAccount = iban(user.country);
+        switch (random.nextInt(12)) {
+            case 0 -> {
+                String id = recentIds[random.nextInt(RECENT_IDS)];
+                append(line, id == null ? newId() : id, user.userId, "DEPOSIT", deposit, ownAccount);
+            }
+            case 1 -> append(line, newId(), uuid(), "DEPOSIT", deposit, ownAccount);
+            case 2 -> {
+                GeneratedUser frozen = frozenUsers.isEmpty() ? user : frozenUsers.get(random.nextInt(frozenUsers.size()));
+                append(line, newId(), frozen.userId, "DEPOSIT", deposit, ownAccount);
+            }
+            case 3 -> append(line, newId(), user.userId, "DEPOSIT", -random.nextInt(100_000), ownAccount);
+            case 4 -> append(line, newId(), user.userId, "DEPOSIT", user.maxDeposit + 1 + random.nextInt(100_000), ownAccount);
+            case 5 -> append(line, newId(), user.userId, "WITHDRAW", user.maxWithdraw + 1 + random.nextInt(100_000), ownAccount);
+            case 6 -> {
+                // change one digit of the account part, which breaks the check digits
+                char[] iban = ownAccount.toCharArray();
+                int position = 4 + random.nextInt(iban.length - 4);
+                iban[position] = (char) ('0' + (iban[position] - '0' + 1 + random.nextInt(9)) % 10);
+                append(line, newId(), user.userId, "DEPOSIT", deposit, new String(iban));
+            }
+            case 7 -> append(line, newId(), user.userId, "DEPOSIT", deposit, card(user.country, false));
+            case 8 -> append(line, newId(), user.userId, "DEPOSIT", deposit, iban((user.country + 1 + random.nextInt(COUNTRIES.length - 1)) % COUNTRIES.length));
+            case 9 -> append(line, newId(), user.userId, "WITHDRAW", user.minWithdraw, ownAccount);
+            case 10 -> append(line, newId(), user.userId, "DEPOSIT", deposit, "CRYPTO", ownAccount);
+            default -> {
+                // an account another user has deposited with, or a new one if that user has none yet
+                GeneratedUser other = activeUsers.get(random.nextInt(activeUsers.size()));
+                String account = other.accounts.isEmpty() ? ownAccount : other.accounts.get(random.nextInt(other.accounts.size()));
+                append(line, newId(), user.userId, "DEPOSIT", deposit, account);
+            }
+        }
+    }
+
+    private void append(StringBuilder line, String id, String userId, String type, long amount, String account) {
+        append(line, id, userId, type, amount, Character.isDigit(account.charAt(0)) ? "CARD" : "TRANSFER", account);
+    }
+
+    private void append(StringBuilder line, String id, String userId, String type, long amount, String method, String account) {
+        line.append(id).append(',').append(userId).append(',').append(type).append(',');
+        Money.appendTo(line, amount);
+        line.append(',').append(method).append(',').append(account);
+    }
+
+    private String newId() {
+        String id = uuid();
+        recentIds[(int) (transactionCount++ % RECENT_IDS)] = id;
+        return id;
+    }
+
+    private String uuid() {
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    private long amountBetween(long min, long max) {
+        return max <= min ? min : min + (long) (random.nextDouble() * (max - min + 1));
+    }
+
+    // A valid IBAN of the country, with random digits as the account part and the check digits computed for it
+    String iban(int country) {
+        String code = COUNTRIES[country][0];
+        int length = Integer.parseInt(COUNTRIES[country][2]);
+        StringBuilder account = new StringBuilder(length);
+        for (int i = 4; i < length; i++) {
+            account.append((char) ('0' + random.nextInt(10)));
+        }
+        int remainder = 0;
+        String rearranged = account + code + "00";
+        for (int i = 0; i < rearranged.length(); i++) {
+            int value = Character.getNumericValue(rearranged.charAt(i));
+            remainder = (value < 10 ? remainder * 10 + value : remainder * 100 + value) % 97;
+        }
+        int checkDigits = 98 - remainder;
+        return code + (checkDigits < 10 ? "0" : "") + checkDigits + account;
+    }
+
+    // A card number from a random bin range of the country with the given debit flag, or any range if there is none
+    String card(int country, boolean debit) {
+        int start = random.nextInt(binStarts.length);
+        int range = start;
+        for (int i = 0; i < binStarts.length; i++) {
+            int candidate = (start + i) % binStarts.length;
+            if (binCountries[candidate] == country && binDebit[candidate] == debit) {
+                range = candidate;
+                break;
+            }
+        }
+        long prefix = binStarts[range] + random.nextInt(BIN_RANGE_SIZE);
+        return prefix + String.format("%06d", random.nextInt(1_000_000));
+    }
+
+    int countryCount() {
+        return COUNTRIES.length;
+    }
+
+    private static class GeneratedUser {
+        String userId;
+        int country;
+        boolean frozen;
+        long balance;
+        long minDeposit;
+        long maxDeposit;
+        long minWithdraw;
+        long maxWithdraw;
+        final List<String> accounts = new ArrayList<>();
+    }
+}
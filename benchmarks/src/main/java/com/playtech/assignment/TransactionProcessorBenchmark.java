@@ -0,0 +1,104 @@
+package com.playtech.assignment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/**
+ * Benchmarks of the file level stages of TransactionProcessorSample on generated data, and of a whole run of main.
+ * The data set size and decline mix are parameters, for example 10M rows with 75% declines:
+ * java -jar target/benchmarks.jar TransactionProcessorBenchmark -p transactions=10000000 -p declineRatio=0.75
+ * Run from the project root, main reads country_codes.txt from the working directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class TransactionProcessorBenchmark {
+
+    @Param({"1000000"})
+    public long transactions;
+
+    @Param({"0.5"})
+    public double declineRatio;
+
+    private Path directory;
+    private List<User> users;
+    private BinTable binTable;
+    private CountryTable countryCodes;
+    private List<Transaction> parsedTransactions;
+    private List<Event> events;
+
+    @Setup(Level.Trial)
+    public void generateData() throws IOException {
+        directory = Files.createTempDirectory("transaction-benchmark");
+        new SyntheticDataGenerator(42).generate(directory, transactions, declineRatio, 1000, 10_000);
+        users = TransactionProcessorSample.readUsers(directory.resolve("users.csv"));
+        binTable = new BinTable(TransactionProcessorSample.readBinMappings(directory.resolve("bins.csv")));
+        countryCodes = TransactionProcessorSample.readCountryCodes(Path.of("country_codes.txt"));
+        parsedTransactions = TransactionProcessorSample.readTransactions(directory.resolve("transactions.csv"));
+        events = TransactionProcessorSample.processTransactions(copyOf(users), parsedTransactions, binTable, countryCodes);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteData() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Transaction> readTransactions() {
+        return TransactionProcessorSample.readTransactions(directory.resolve("transactions.csv"));
+    }
+
+    @Benchmark
+    public List<Event> processTransactions() {
+        // processing changes the balances, so every run starts from fresh copies of the users
+        return TransactionProcessorSample.processTransactions(copyOf(users), parsedTransactions, binTable, countryCodes);
+    }
+
+    @Benchmark
+    public void writeEvents() throws IOException {
+        TransactionProcessorSample.writeEvents(directory.resolve("events.csv"), events);
+    }
+
+    @Benchmark
+    public void endToEnd() throws Exception {
+        TransactionProcessorSample.main(new String[]{
+                directory.resolve("users.csv").toString(), directory.resolve("transactions.csv").toString(), directory.resolve("bins.csv").toString(),
+                directory.resolve("balances.csv").toString(), directory.resolve("events.csv").toString()});
+    }
+
+    private static List<User> copyOf(List<User> users) {
+        List<User> copies = new ArrayList<>(users.size());
+        for (User user : users) {
+            copies.add(new User(user.userId, user.username, user.balance, user.country, user.frozen, user.minDeposit, user.maxDeposit, user.minWithdraw, user.maxWithdraw));
+        }
+        return copies;
+    }
+}
@@ -0,0 +1,69 @@
+package com.playtech.assignment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmarks of the per transaction account checks: the IBAN validation of transfers and the bin range lookup of
+ * card payments. Every call checks the next account of a generated sample, half of the IBANs have broken check digits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ValidationBenchmark {
+    private static final int SAMPLE_SIZE = 4096;
+
+    @Param({"10000", "300000"})
+    public int binRanges;
+
+    private final String[] ibans = new String[SAMPLE_SIZE];
+    private final String[] cards = new String[SAMPLE_SIZE];
+    private BinTable binTable;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void generateData() throws IOException {
+        Path directory = Files.createTempDirectory("validation-benchmark");
+        SyntheticDataGenerator generator = new SyntheticDataGenerator(7);
+        generator.generate(directory, 0, 0, 1, binRanges);
+        binTable = new BinTable(TransactionProcessorSample.readBinMappings(directory.resolve("bins.csv")));
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            String iban = generator.iban(i % generator.countryCount());
+            ibans[i] = i % 2 == 0 ? iban : iban.substring(0, iban.length() - 1) + (char) ('0' + (iban.charAt(iban.length() - 1) - '0' + 1) % 10);
+            cards[i] = generator.card(i % generator.countryCount(), i % 3 != 0);
+        }
+        for (String file : new String[]{"users.csv", "bins.csv", "transactions.csv"}) {
+            Files.delete(directory.resolve(file));
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public boolean isIbanValid() {
+        return Iban.isValid(ibans[next++ & (SAMPLE_SIZE - 1)]);
+    }
+
+    @Benchmark
+    public int binLookup() {
+        return binTable.find(BinTable.cardPrefix(cards[next++ & (SAMPLE_SIZE - 1)]));
+    }
+}
@@ -0,0 +1,116 @@
+package com.playtech.assignment;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Compares BinTable with the loop over all bin mappings it replaced, on generated mappings that overlap in every way:
+ * debit and non-debit mappings of several countries in any order, mappings with rangeFrom above rangeTo, which cover
+ * nothing, and bounds at Long.MIN_VALUE and Long.MAX_VALUE. Every bound, the numbers next to it and random numbers
+ * are looked up for users of every country.
+ */
+class BinTableTest {
+    private static final int TABLES = 20_000;
+    private static final String[] TYPES = {"DC", "DC", "CC", "PP"};
+    private static final String[] COUNTRIES = {"EST", "LVA", "DEU"};
+    private static final String[] USER_COUNTRIES = {"EST", "LVA", "DEU", "USA", null};
+
+    // The loop of cardValidation before BinTable, with the outcome as the event reason and its detail
+    private static String cardValidationBefore(List<BinMapping> binMappings, long number, String userCountry) {
+        for (BinMapping binMapping : binMappings) {
+            if (number >= binMapping.rangeFrom && number <= binMapping.rangeTo) {
+                if (!binMapping.type.equals("DC")) {
+                    return "CARD_NOT_DEBIT " + binMapping.type;
+                }
+                String binCountryCode = binMapping.country;
+                if (!binCountryCode.equals(userCountry)) {
+                    return "CARD_COUNTRY_MISMATCH";
+                }
+            }
+        }
+        return "APPROVED";
+    }
+
+    // The checks of cardValidation with BinTable
+    private static String cardValidation(BinTable binTable, long number, String userCountry) {
+        int range = binTable.find(number);
+        if (range >= 0) {
+            if (!binTable.matchesCountry(range, userCountry)) {
+                return "CARD_COUNTRY_MISMATCH";
+            }
+            String nonDebitType = binTable.nonDebitType(range);
+            if (nonDebitType != null) {
+                return "CARD_NOT_DEBIT " + nonDebitType;
+            }
+        }
+        return "APPROVED";
+    }
+
+    @Test
+    void agreesWithLoopOverAllMappings() {
+        Random random = new Random(7);
+        Map<String, Integer> outcomes = new HashMap<>();
+        int lookups = 0;
+        for (int table = 0; table < TABLES; table++) {
+            List<BinMapping> binMappings = new ArrayList<>();
+            List<Long> numbers = new ArrayList<>(List.of(Long.MIN_VALUE, Long.MAX_VALUE, 0L));
+            for (int i = random.nextInt(8); i >= 0; i--) {
+                long from = bound(random);
+                long to = random.nextInt(10) == 0 ? from - 1 - random.nextInt(5) : bound(random);
+                if (random.nextInt(10) != 0 && from > to) {
+                    long swap = from;
+                    from = to;
+                    to = swap;
+                }
+                binMappings.add(new BinMapping("Bank " + i, from, to, TYPES[random.nextInt(TYPES.length)], COUNTRIES[random.nextInt(COUNTRIES.length)]));
+                for (long bound : new long[]{from, to}) {
+                    numbers.add(bound);
+                    numbers.add(bound - 1);
+                    numbers.add(bound + 1);
+                }
+            }
+            for (int i = 0; i < 5; i++) {
+                numbers.add(random.nextLong(-10, 110));
+            }
+            BinTable binTable = new BinTable(binMappings);
+            for (long number : numbers) {
+                for (String userCountry : USER_COUNTRIES) {
+                    String expected = cardValidationBefore(binMappings, number, userCountry);
+                    assertEquals(expected, cardValidation(binTable, number, userCountry), () -> number + " for " + userCountry + " in " + describe(binMappings));
+                    outcomes.merge(expected.split(" ")[0], 1, Integer::sum);
+                    lookups++;
+                }
+            }
+        }
+        // the generated lookups have every outcome in quantity
+        for (String outcome : new String[]{"APPROVED", "CARD_COUNTRY_MISMATCH", "CARD_NOT_DEBIT"}) {
+            assertTrue(outcomes.getOrDefault(outcome, 0) > lookups / 10, outcomes + " of " + lookups);
+        }
+    }
+
+    // Mostly small bounds, so that mappings overlap, and sometimes the ends of the long range
+    private static long bound(Random random) {
+        return switch (random.nextInt(20)) {
+            case 0 -> Long.MAX_VALUE;
+            case 1 -> Long.MIN_VALUE;
+            default -> random.nextInt(100);
+        };
+    }
+
+    private static String describe(List<BinMapping> binMappings) {
+        StringBuilder sb = new StringBuilder();
+        for (BinMapping binMapping : binMappings) {
+            sb.append(String.format("%n  %d..%d %s %s", binMapping.rangeFrom, binMapping.rangeTo, binMapping.type, binMapping.country));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,98 @@
+package com.playtech.assignment;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+/**
+ * Streaming mode with checkpoints on the 50% validations test data: resuming after rows were appended to the
+ * transactions file, also to a last row without a line break, gives the output of one run over the whole file, and
+ * invalid resumes fail before the events file is touched.
+ */
+class CheckpointTest {
+    private static final Path INPUT = TestData.input(TestData.HALF_VALIDATIONS);
+
+    @TempDir
+    Path directory;
+    private List<String> rows;
+
+    @BeforeEach
+    void readRows() throws IOException {
+        rows = Files.readAllLines(INPUT.resolve("transactions.csv"));
+    }
+
+    @Test
+    void resumesAfterAppendedRows() throws Exception {
+        writeTransactions(rows.subList(0, 60));
+        run("--checkpoint-interval=7");
+        writeTransactions(rows);
+        run("--checkpoint-interval=7");
+
+        TestData.assertOutputOf(TestData.HALF_VALIDATIONS, directory);
+    }
+
+    @Test
+    void resumesAfterRowsAppendedToAFileWithoutAFinalLineBreak() throws Exception {
+        Files.writeString(directory.resolve("transactions.csv"), String.join("\n", rows.subList(0, 60)));
+        run("--checkpoint-interval=7");
+        Files.writeString(directory.resolve("transactions.csv"), "\n" + String.join("\n", rows.subList(60, rows.size())) + "\n", StandardOpenOption.APPEND);
+        run("--checkpoint-interval=7");
+
+        TestData.assertOutputOf(TestData.HALF_VALIDATIONS, directory);
+    }
+
+    @Test
+    void readsAgainALastRowThatWasContinued() throws Exception {
+        // the last row is cut in its account number, it is processed as it is and then continued
+        String row = rows.get(60);
+        int cut = row.length() - 3;
+        Files.writeString(directory.resolve("transactions.csv"), String.join("\n", rows.subList(0, 60)) + "\n" + row.substring(0, cut));
+        run("--checkpoint-interval=7");
+        Files.writeString(directory.resolve("transactions.csv"), row.substring(cut) + "\n" + String.join("\n", rows.subList(61, rows.size())) + "\n",
+                StandardOpenOption.APPEND);
+        run("--checkpoint-interval=7");
+
+        TestData.assertOutputOf(TestData.HALF_VALIDATIONS, directory);
+    }
+
+    @Test
+    void refusesToResumeWithRewrittenTransactions() throws Exception {
+        writeTransactions(rows.subList(0, 60));
+        run("--checkpoint-interval=7");
+        String events = Files.readString(directory.resolve("events.csv"));
+        // the same header with other rows, the checkpoint offset now falls in the middle of a row
+        writeTransactions(List.of(rows.get(0)));
+        Files.writeString(directory.resolve("transactions.csv"), String.join("\n", rows.subList(30, rows.size())) + "\n", StandardOpenOption.APPEND);
+
+        assertThrows(IOException.class, () -> run("--checkpoint-interval=7"));
+        assertEquals(events, Files.readString(directory.resolve("events.csv")));
+    }
+
+    @Test
+    void rejectsIntervalBelowOne() throws Exception {
+        writeTransactions(rows);
+        Files.writeString(directory.resolve("events.csv"), "previous events\n");
+
+        assertThrows(IllegalArgumentException.class, () -> run("--checkpoint-interval=0"));
+        assertEquals("previous events\n", Files.readString(directory.resolve("events.csv")));
+    }
+
+    private void writeTransactions(List<String> lines) throws IOException {
+        Files.writeString(directory.resolve("transactions.csv"), String.join("\n", lines) + "\n");
+    }
+
+    private void run(String checkpointInterval) throws IOException, InterruptedException {
+        TestData.run(INPUT.resolve("users.csv"), directory.resolve("transactions.csv"), directory,
+                "--mode=streaming", "--checkpoint=" + directory.resolve("checkpoint"), checkpointInterval);
+    }
+}
@@ -0,0 +1,115 @@
+package com.playtech.assignment;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Compares Iban.isValid with the BigInteger implementation it replaced on generated IBANs: valid ones, ones with a
+ * changed character, the wrong length, lowercase letters, and countries outside the IBAN registry. Iban.isValid also
+ * checks the format and the registered length of the country, so it accepts an IBAN exactly when the old check did
+ * and the IBAN has that format and length. Both the String and the byte slice overload are checked.
+ */
+class IbanTest {
+    private static final int SAMPLES = 1_000_000;
+    private static final String ALPHANUMERIC = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    // SN, CG and US are not in the registry, only the maximum length applies to them
+    private static final String[] COUNTRIES = {"EE", "DE", "GB", "FR", "NO", "MT", "SN", "CG", "US", "LC"};
+    private static final int[] LENGTHS = {20, 22, 22, 27, 15, 31, 28, 27, 24, 32};
+    private static final boolean[] REGISTERED = {true, true, true, true, true, true, false, false, false, true};
+
+    // The implementation before Iban, with the length check that came before it in transferValidation
+    private static boolean isIbanValidBefore(String iban) {
+        if (iban.length() > 34) {
+            return false;
+        }
+        String rearrangedIban = iban.substring(4) + iban.substring(0, 4);
+        StringBuilder expandedIban = new StringBuilder();
+        for (char ch : rearrangedIban.toCharArray()) {
+            if (Character.isLetter(ch)) {
+                int numericValue = Character.toUpperCase(ch) - 'A' + 10;
+                expandedIban.append(numericValue);
+            } else {
+                expandedIban.append(ch);
+            }
+        }
+        BigInteger bigInteger = new BigInteger(expandedIban.toString());
+        return bigInteger.mod(BigInteger.valueOf(97)).intValue() == 1;
+    }
+
+    @Test
+    void agreesWithBigIntegerImplementation() {
+        Random random = new Random(3);
+        byte[] slice = new byte[64];
+        int valid = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            int country = random.nextInt(COUNTRIES.length);
+            int length = LENGTHS[country] + (random.nextInt(10) == 0 ? random.nextInt(5) - 2 : 0);
+            String iban = withCheckDigits(COUNTRIES[country], length, random);
+            if (random.nextInt(3) == 0) {
+                int position = random.nextInt(iban.length());
+                iban = iban.substring(0, position) + ALPHANUMERIC.charAt(random.nextInt(ALPHANUMERIC.length())) + iban.substring(position + 1);
+            }
+            if (random.nextInt(20) == 0) {
+                iban = iban.toLowerCase();
+            }
+
+            boolean before;
+            try {
+                before = isIbanValidBefore(iban);
+            } catch (RuntimeException e) {
+                before = false;
+            }
+            boolean format = Character.isUpperCase(iban.charAt(0)) && Character.isUpperCase(iban.charAt(1))
+                    && Character.isDigit(iban.charAt(2)) && Character.isDigit(iban.charAt(3))
+                    && (!REGISTERED[country] || iban.length() == LENGTHS[country]);
+            boolean expected = before && format;
+            assertEquals(expected, Iban.isValid(iban), iban);
+
+            // the slice starts at an offset and is followed by other bytes, as in a batch
+            int start = random.nextInt(8);
+            byte[] bytes = iban.getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(bytes, 0, slice, start, bytes.length);
+            slice[start + bytes.length] = '7';
+            assertEquals(expected, Iban.isValid(slice, start, bytes.length), iban);
+            if (expected) {
+                valid++;
+            }
+        }
+        // the generated set has both outcomes in quantity
+        assertTrue(valid > SAMPLES / 4 && valid < SAMPLES * 3 / 4, "valid " + valid);
+    }
+
+    @Test
+    void rejectsMalformedIbans() {
+        for (String iban : new String[]{"", "GB", "GB82", "GB82 WEST 1234 5698 7654 32", "GB82-WEST12345698765432", "ÄB82WEST12345698765432",
+                "GB82WEST123456987654321", "gb82WEST12345698765432", "GBX2WEST12345698765432"}) {
+            assertFalse(Iban.isValid(iban), iban);
+            byte[] bytes = iban.getBytes(StandardCharsets.UTF_8);
+            assertFalse(Iban.isValid(bytes, 0, bytes.length), iban);
+        }
+        assertTrue(Iban.isValid("GB82WEST12345698765432"));
+    }
+
+    // A random account part of the length with the check digits that make it valid
+    private static String withCheckDigits(String country, int length, Random random) {
+        StringBuilder account = new StringBuilder();
+        for (int i = 4; i < length; i++) {
+            account.append(ALPHANUMERIC.charAt(random.nextInt(random.nextInt(4) == 0 ? ALPHANUMERIC.length() : 10)));
+        }
+        String rearranged = account + country + "00";
+        StringBuilder expanded = new StringBuilder();
+        for (char ch : rearranged.toCharArray()) {
+            expanded.append(Character.isLetter(ch) ? String.valueOf(ch - 'A' + 10) : String.valueOf(ch));
+        }
+        int remainder = new BigInteger(expanded.toString()).mod(BigInteger.valueOf(97)).intValue();
+        return country + String.format("%02d", 98 - remainder) + account;
+    }
+}
@@ -0,0 +1,100 @@
+package com.playtech.assignment;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+/**
+ * InternTable against a HashMap of the same keys, sequential and concurrent, well past the initial capacity of a
+ * stripe. Keys are ASCII, Latin-1 and beyond Latin-1, which the table keeps in a map of its own; ASCII keys are also
+ * looked up and added as byte slices.
+ */
+class InternTableTest {
+
+    @Test
+    void agreesWithHashMap() {
+        for (InternTable table : new InternTable[]{new InternTable(1, false), new InternTable(8, true)}) {
+            Random random = new Random(29);
+            Map<String, Integer> expected = new HashMap<>();
+            for (int i = 0; i < 30_000; i++) {
+                String key = key(random);
+                assertEquals(expected.getOrDefault(key, InternTable.ABSENT), table.get(key), key);
+                byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                boolean ascii = bytes.length == key.length();
+                if (ascii && i % 2 == 0) {
+                    table.putIfAbsent(padded(bytes), 3, bytes.length, i);
+                } else {
+                    table.putIfAbsent(key, i);
+                }
+                expected.putIfAbsent(key, i);
+                assertEquals(expected.get(key), table.get(key), key);
+                if (ascii) {
+                    assertEquals(expected.get(key), table.get(padded(bytes), 3, bytes.length), key);
+                }
+            }
+            for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), table.get(entry.getKey()), entry.getKey());
+            }
+            assertEquals(InternTable.ABSENT, table.get("missing"));
+            assertEquals(InternTable.ABSENT, table.get(padded("missing".getBytes(StandardCharsets.US_ASCII)), 3, 7));
+            // the empty key is a key like any other
+            assertEquals(expected.get(""), table.get(new byte[]{'x'}, 0, 0));
+        }
+    }
+
+    @Test
+    void writeToAndReadFromKeepEveryKey() throws IOException {
+        InternTable table = new InternTable(2, false);
+        Map<String, Integer> expected = new HashMap<>();
+        Random random = new Random(31);
+        for (int i = 0; i < 5_000; i++) {
+            String key = key(random);
+            table.putIfAbsent(key, i % 100);
+            expected.putIfAbsent(key, i % 100);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.writeTo(new DataOutputStream(bytes));
+
+        InternTable copy = new InternTable(4, true);
+        copy.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 100);
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), copy.get(entry.getKey()), entry.getKey());
+        }
+        // values must be below the limit, such as the number of users
+        assertThrows(IOException.class, () -> new InternTable(1, false).readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 99));
+    }
+
+    // Mostly ASCII account numbers, some with Latin-1 or other characters, and the empty key
+    private static String key(Random random) {
+        int n = random.nextInt(8_000);
+        return switch (random.nextInt(10)) {
+            case 0 -> "ÄÖ" + n;
+            case 1 -> "€" + n;
+            case 2 -> n % 100 == 0 ? "" : "DE" + n;
+            default -> "EE" + String.format("%018d", n * 7919L);
+        };
+    }
+
+    // The bytes after three others and followed by one more, as in a batch
+    private static byte[] padded(byte[] bytes) {
+        byte[] padded = new byte[bytes.length + 4];
+        padded[0] = 'a';
+        padded[1] = ',';
+        padded[2] = 'b';
+        System.arraycopy(bytes, 0, padded, 3, bytes.length);
+        padded[padded.length - 1] = ',';
+        return padded;
+    }
+}
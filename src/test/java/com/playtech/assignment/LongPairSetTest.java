@@ -0,0 +1,78 @@
+package com.playtech.assignment;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * LongPairSet against a HashSet of the same keys, through several times its initial capacity, with the all zero key
+ * that is kept apart from the table and keys that are zero in one half only.
+ */
+class LongPairSetTest {
+
+    @Test
+    void agreesWithHashSetWhileGrowing() {
+        Random random = new Random(11);
+        LongPairSet set = new LongPairSet();
+        Set<List<Long>> expected = new HashSet<>();
+        for (int i = 0; i < 50_000; i++) {
+            // few distinct values, so that keys repeat and share halves
+            long high = random.nextInt(4) == 0 ? 0 : random.nextInt(300);
+            long low = random.nextInt(4) == 0 ? 0 : random.nextInt(300);
+            assertEquals(expected.add(List.of(high, low)), set.add(high, low), high + " " + low);
+            assertTrue(set.contains(high, low));
+        }
+        assertEquals(expected.size(), set.size());
+        for (long high = -1; high < 301; high++) {
+            for (long low = -1; low < 301; low++) {
+                assertEquals(expected.contains(List.of(high, low)), set.contains(high, low), high + " " + low);
+            }
+        }
+    }
+
+    @Test
+    void zeroKeyIsAddedOnce() {
+        LongPairSet set = new LongPairSet();
+        assertFalse(set.contains(0, 0));
+        assertTrue(set.add(0, 0));
+        assertFalse(set.add(0, 0));
+        assertTrue(set.contains(0, 0));
+        assertFalse(set.contains(0, 1));
+        assertFalse(set.contains(1, 0));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    void writesEveryPairOnce() throws IOException {
+        LongPairSet set = new LongPairSet();
+        set.add(0, 0);
+        for (long i = 1; i <= 5000; i++) {
+            set.add(i, -i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        set.writePairs(new DataOutputStream(bytes));
+        assertEquals(16 * 5001, bytes.size());
+
+        LongPairSet copy = new LongPairSet();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (int i = 0; i < 5001; i++) {
+            assertTrue(copy.add(in.readLong(), in.readLong()));
+        }
+        assertTrue(copy.contains(0, 0));
+        assertTrue(copy.contains(5000, -5000));
+        assertEquals(5001, copy.size());
+    }
+}
@@ -0,0 +1,65 @@
+package com.playtech.assignment;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * The reference data cache gives the same output as the source files, and a cache that is truncated or not a cache at
+ * all is compiled again instead of failing the run.
+ */
+class ReferenceDataTest {
+    private static final Path INPUT = TestData.input(TestData.HALF_VALIDATIONS);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void outputIsTheSameWithTheCache() throws Exception {
+        run();
+        assertOutputIsUnchanged();
+        run();
+        assertOutputIsUnchanged();
+    }
+
+    @Test
+    void truncatedCacheIsCompiledAgain() throws Exception {
+        run();
+        long size = Files.size(cache());
+        try (FileChannel channel = FileChannel.open(cache(), StandardOpenOption.WRITE)) {
+            channel.truncate(100);
+        }
+        run();
+        assertOutputIsUnchanged();
+        assertEquals(size, Files.size(cache()));
+    }
+
+    @Test
+    void otherFileIsReplacedByTheCache() throws Exception {
+        Files.writeString(cache(), "not a cache");
+        run();
+        assertOutputIsUnchanged();
+        assertTrue(Files.size(cache()) > 100);
+    }
+
+    private Path cache() {
+        return directory.resolve("reference.cache");
+    }
+
+    private void run() throws IOException, InterruptedException {
+        TestData.run(INPUT.resolve("users.csv"), INPUT.resolve("transactions.csv"), directory, "--reference-cache=" + cache());
+    }
+
+    private void assertOutputIsUnchanged() throws IOException {
+        TestData.assertOutputOf(TestData.HALF_VALIDATIONS, directory);
+    }
+}
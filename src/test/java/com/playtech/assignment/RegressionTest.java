@@ -0,0 +1,187 @@
+package com.playtech.assignment;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * Runs main on the inputs of the test-data directories in every file mode and compares balances.csv and events.csv
+ * byte for byte with the outputs of the original double based implementation, see TestData, so the tests show the
+ * output has not changed.
+ */
+class RegressionTest {
+    private static final String[] MODES = {"list", "streaming", "parallel", "pipelined"};
+
+    @TempDir
+    Path output;
+
+    static Stream<Arguments> dataSetsAndModes() {
+        List<Arguments> arguments = new ArrayList<>();
+        for (String dataSet : TestData.DATA_SETS) {
+            for (String mode : MODES) {
+                arguments.add(Arguments.of(dataSet, mode));
+            }
+        }
+        return arguments.stream();
+    }
+
+    @ParameterizedTest(name = "{0} in {1} mode")
+    @MethodSource("dataSetsAndModes")
+    void outputIsUnchanged(String dataSet, String mode) throws Exception {
+        Path input = TestData.input(dataSet);
+        TestData.run(input.resolve("users.csv"), input.resolve("transactions.csv"), output, "--mode=" + mode);
+
+        TestData.assertOutputOf(dataSet, output);
+    }
+
+    // Amounts with more than two decimals are checked against the limits as written, not rounded to cents first
+    @ParameterizedTest(name = "{0} mode")
+    @MethodSource("modes")
+    void amountsBelowACentAreComparedExactly(String mode) throws Exception {
+        Path users = write("users.csv",
+                "user_id,username,balance,country,frozen,deposit_min,deposit_max,withdraw_min,withdraw_max",
+                "u1,alice,1000.00,EE,0,4.67,6344.70,1.00,500.00");
+        String account = "EE382200221020145685";
+        Path transactions = write("transactions.csv",
+                "transaction_id,user_id,type,amount,method,account_number",
+                "t1,u1,DEPOSIT,6344.701,TRANSFER," + account,
+                "t2,u1,DEPOSIT,4.665,TRANSFER," + account,
+                "t3,u1,DEPOSIT,6344.70,TRANSFER," + account,
+                "t4,u1,DEPOSIT,100.005,TRANSFER," + account,
+                "t5,u1,DEPOSIT,4.670,TRANSFER," + account,
+                "t6,u1,WITHDRAW,500.0001,TRANSFER," + account,
+                "t7,u1,WITHDRAW,0.9999,TRANSFER," + account,
+                "t8,u1,DEPOSIT,1e-3,TRANSFER," + account,
+                "t9,u1,DEPOSIT,4.67e0,TRANSFER," + account);
+        TestData.run(users, transactions, output, "--mode=" + mode);
+
+        assertEquals(String.join("\n",
+                "transaction_id,status,message",
+                "t1,DECLINED,Amount 6344.70 is over the deposit limit of 6344.70",
+                "t2,DECLINED,Amount 4.67 is under the deposit limit of 4.67",
+                "t3,APPROVED,OK",
+                "t4,DECLINED,Amount 100.005 has more than two decimals",
+                "t5,APPROVED,OK",
+                "t6,DECLINED,Amount 500.00 is over the withdraw limit of 500.00",
+                "t7,DECLINED,Amount 1.00 is under the withdraw limit of 1.00",
+                "t8,DECLINED,Amount 0.00 is under the deposit limit of 4.67",
+                "t9,APPROVED,OK",
+                ""), Files.readString(output.resolve("events.csv")));
+        assertEquals("user_id,balance\nu1,7354.04\n", Files.readString(output.resolve("balances.csv")));
+    }
+
+    // Amounts of up to 20 digits that do not fit in a long in cents are declined one by one, and so is a deposit that
+    // would overflow the balance, the other transactions are processed
+    @ParameterizedTest(name = "{0} mode")
+    @MethodSource("modes")
+    void amountsBeyondTheRangeOfCentsAreDeclined(String mode) throws Exception {
+        Path users = write("users.csv",
+                "user_id,username,balance,country,frozen,deposit_min,deposit_max,withdraw_min,withdraw_max",
+                "u1,alice,1000.00,EE,0,4.67,6344.70,1.00,500.00",
+                "u2,bob,1.00,EE,0,0.01,99999999999999999999.99,0.01,99999999999999999999.99");
+        String account = "EE382200221020145685";
+        String otherAccount = "EE471000001020145685";
+        Path transactions = write("transactions.csv",
+                "transaction_id,user_id,type,amount,method,account_number",
+                "t1,u1,DEPOSIT,999999999999999999.99,TRANSFER," + account,
+                "t2,u1,DEPOSIT,100.00,TRANSFER," + account,
+                "t3,u1,WITHDRAW,12345678901234567890,TRANSFER," + account,
+                "t4,u1,DEPOSIT,-99999999999999999999.99,TRANSFER," + account,
+                "t5,u2,DEPOSIT,92233720368547758.08,TRANSFER," + otherAccount,
+                "t6,u2,DEPOSIT,92233720368547758.07,TRANSFER," + otherAccount,
+                "t7,u2,DEPOSIT,92233720368547757.07,TRANSFER," + otherAccount,
+                "t8,u2,DEPOSIT,0.01,TRANSFER," + otherAccount,
+                "t9,u1,WITHDRAW,50.00,TRANSFER," + account);
+        TestData.run(users, transactions, output, "--mode=" + mode);
+
+        assertEquals(String.join("\n",
+                "transaction_id,status,message",
+                "t1,DECLINED,Amount 999999999999999999.99 is out of range",
+                "t2,APPROVED,OK",
+                "t3,DECLINED,Amount 12345678901234567890 is out of range",
+                "t4,DECLINED,Amount -99999999999999999999.99 is out of range",
+                "t5,DECLINED,Amount 92233720368547758.08 is out of range",
+                "t6,DECLINED,Error processing transaction t6",
+                "t7,APPROVED,OK",
+                "t8,DECLINED,Error processing transaction t8",
+                "t9,APPROVED,OK",
+                ""), Files.readString(output.resolve("events.csv")));
+        assertEquals("user_id,balance\nu1,1050.00\nu2,92233720368547758.07\n", Files.readString(output.resolve("balances.csv")));
+    }
+
+    // Rows that are not plain ASCII or not exact in cents are processed as Transactions inside the pipelined batches,
+    // over several batches every mode gives the events and balances of list mode
+    @ParameterizedTest(name = "{0} mode")
+    @MethodSource("modes")
+    void fallbackRowsInSeveralBatchesMatchListMode(String mode) throws Exception {
+        Random random = new Random(5);
+        List<String> userLines = new ArrayList<>(List.of("user_id,username,balance,country,frozen,deposit_min,deposit_max,withdraw_min,withdraw_max"));
+        for (int user = 0; user < 40; user++) {
+            userLines.add("u" + user + ",user" + user + ",500.00,EE," + (user % 13 == 0 ? 1 : 0) + ",1.00,1000.00,1.00,800.00");
+        }
+        List<String> transactionLines = new ArrayList<>(List.of("transaction_id,user_id,type,amount,method,account_number"));
+        for (int row = 0; row < 3000; row++) {
+            int user = random.nextInt(45);
+            String id = (random.nextInt(20) == 0 ? "tä" : "t") + random.nextInt(2800);
+            String amount = random.nextInt(10) + "" + random.nextInt(100) + "." + String.format("%02d", random.nextInt(100))
+                    + (random.nextInt(15) == 0 ? "5" : "");
+            String account = random.nextInt(8) == 0 ? iban(random.nextInt(45)) : iban(user);
+            transactionLines.add(id + ",u" + user + "," + (random.nextBoolean() ? "DEPOSIT" : "WITHDRAW") + "," + amount + ",TRANSFER," + account);
+        }
+        Path users = write("users.csv", userLines.toArray(new String[0]));
+        Path transactions = write("transactions.csv", transactionLines.toArray(new String[0]));
+        TestData.run(users, transactions, output, "--mode=list");
+        String events = Files.readString(output.resolve("events.csv"));
+        String balances = Files.readString(output.resolve("balances.csv"));
+
+        TestData.run(users, transactions, output, "--mode=" + mode);
+        assertEquals(events, Files.readString(output.resolve("events.csv")));
+        assertEquals(balances, Files.readString(output.resolve("balances.csv")));
+    }
+
+    // Without any users, rows of both kinds are declined for the unknown user
+    @ParameterizedTest(name = "{0} mode")
+    @MethodSource("modes")
+    void usersFileWithOnlyAHeader(String mode) throws Exception {
+        Path users = write("users.csv", "user_id,username,balance,country,frozen,deposit_min,deposit_max,withdraw_min,withdraw_max");
+        Path transactions = write("transactions.csv",
+                "transaction_id,user_id,type,amount,method,account_number",
+                "t1,u1,DEPOSIT,10.005,TRANSFER,EE382200221020145685",
+                "t2,u1,DEPOSIT,10.00,TRANSFER,EE382200221020145685");
+        TestData.run(users, transactions, output, "--mode=" + mode);
+
+        assertEquals("transaction_id,status,message\nt1,DECLINED,User u1 not found in Users\nt2,DECLINED,User u1 not found in Users\n",
+                Files.readString(output.resolve("events.csv")));
+        assertEquals("user_id,balance\n", Files.readString(output.resolve("balances.csv")));
+    }
+
+    // A valid Estonian IBAN that is different for every number
+    private static String iban(int number) {
+        String account = String.format("%016d", 1000001020145685L + number);
+        int remainder = new BigInteger(account + "141400").mod(BigInteger.valueOf(97)).intValue();
+        return "EE" + String.format("%02d", 98 - remainder) + account;
+    }
+
+    static Stream<String> modes() {
+        return Stream.of(MODES);
+    }
+
+    private Path write(String name, String... lines) throws IOException {
+        Path file = output.resolve("input-" + name);
+        Files.writeString(file, String.join("\n", lines) + "\n");
+        return file;
+    }
+}
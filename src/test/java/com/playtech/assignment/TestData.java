@@ -0,0 +1,53 @@
+package com.playtech.assignment;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * The test-data directories, their outputs in src/test/resources/regression as written by the original double based
+ * implementation, and a run of main on them. The test-data directories have no bin mappings, all of them use
+ * regression/bins.csv.
+ * Tests run from the project root, main reads country_codes.txt from the working directory.
+ */
+final class TestData {
+    static final Path EXPECTED = Path.of("src/test/resources/regression");
+    static final Path BINS = EXPECTED.resolve("bins.csv");
+    static final String[] DATA_SETS = {
+            "manual test data 75% validations", "my test data", "test random data (small)", "test random data 50% validations"};
+    // the data set of the tests that need only one
+    static final String HALF_VALIDATIONS = "test random data 50% validations";
+
+    private TestData() {
+    }
+
+    static Stream<String> dataSets() {
+        return Stream.of(DATA_SETS);
+    }
+
+    // Directory of the users.csv and transactions.csv of a data set, some data sets name it inputs
+    static Path input(String dataSet) {
+        Path input = Path.of("test-data", dataSet, "input");
+        return Files.isDirectory(input) ? input : Path.of("test-data", dataSet, "inputs");
+    }
+
+    // Runs main with the bins of the tests, writing balances.csv and events.csv into the output directory
+    static void run(Path users, Path transactions, Path output, String... options) throws IOException, InterruptedException {
+        List<String> args = new ArrayList<>(List.of(users.toString(), transactions.toString(), BINS.toString(),
+                output.resolve("balances.csv").toString(), output.resolve("events.csv").toString()));
+        args.addAll(List.of(options));
+        TransactionProcessorSample.main(args.toArray(new String[0]));
+    }
+
+    // The balances.csv and events.csv in the output directory are byte for byte the outputs of the data set
+    static void assertOutputOf(String dataSet, Path output) throws IOException {
+        assertEquals(Files.readString(EXPECTED.resolve(dataSet).resolve("balances.csv")), Files.readString(output.resolve("balances.csv")));
+        assertEquals(Files.readString(EXPECTED.resolve(dataSet).resolve("events.csv")), Files.readString(output.resolve("events.csv")));
+    }
+}
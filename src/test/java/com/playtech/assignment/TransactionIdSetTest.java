@@ -0,0 +1,129 @@
+package com.playtech.assignment;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * TransactionIdSet against a HashSet of the same ids, sequential and concurrent. The ids are of every kind the set
+ * tells apart: lowercase UUIDs, which are parsed, short ASCII ids up to the 16 characters that are packed, and the
+ * ids kept as Strings, which are longer, uppercase UUIDs or not ASCII. Ids of different kinds that could map to the
+ * same two longs must stay different ids.
+ */
+class TransactionIdSetTest {
+
+    @Test
+    void agreesWithHashSet() {
+        for (TransactionIdSet set : new TransactionIdSet[]{new TransactionIdSet(1, false), new TransactionIdSet(4, true)}) {
+            Random random = new Random(13);
+            List<String> ids = ids(random, 20_000);
+            Set<String> expected = new HashSet<>();
+            for (int i = 0; i < ids.size(); i++) {
+                String id = ids.get(i);
+                assertEquals(expected.contains(id), set.contains(id), id);
+                if (i % 2 == 0) {
+                    set.add(id);
+                } else {
+                    byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length == id.length()) {
+                        set.add(bytes, 0, bytes.length);
+                    } else {
+                        set.add(id);
+                    }
+                }
+                expected.add(id);
+            }
+            for (String id : ids(new Random(17), 20_000)) {
+                assertEquals(expected.contains(id), set.contains(id), id);
+                byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length == id.length()) {
+                    assertEquals(expected.contains(id), set.contains(bytes, 0, bytes.length), id);
+                }
+            }
+        }
+    }
+
+    @Test
+    void keepsIdsOfDifferentKindsApart() {
+        TransactionIdSet set = new TransactionIdSet(1, false);
+        String zeroUuid = "00000000-0000-0000-0000-000000000000";
+        set.add(zeroUuid);
+        set.add("abcdefghijklmnop");
+        set.add("e3b0c442-98fc-1c14-9afb-f4c8996fb924");
+        set.add("tä1");
+
+        assertTrue(set.contains(zeroUuid));
+        assertFalse(set.contains("00000000-0000-0000-0000-000000000001"));
+        // 16 characters are packed, the 17th makes it a String
+        assertTrue(set.contains("abcdefghijklmnop"));
+        assertFalse(set.contains("abcdefghijklmnopq"));
+        assertFalse(set.contains("abcdefghijklmno"));
+        set.add("abcdefghijklmnopq");
+        assertTrue(set.contains("abcdefghijklmnopq"));
+        // the packed form pads with zeros, an id with a zero character is a String
+        assertFalse(set.contains("abcdefghijklmno\0"));
+        // only the lowercase spelling of a UUID is parsed, other spellings are different ids
+        assertTrue(set.contains("e3b0c442-98fc-1c14-9afb-f4c8996fb924"));
+        assertFalse(set.contains("E3B0C442-98FC-1C14-9AFB-F4C8996FB924"));
+        assertFalse(set.contains("e3b0c44298fc1c149afbf4c8996fb924"));
+        set.add("E3B0C442-98FC-1C14-9AFB-F4C8996FB924");
+        assertTrue(set.contains("E3B0C442-98FC-1C14-9AFB-F4C8996FB924"));
+        assertTrue(set.contains("tä1"));
+        assertFalse(set.contains("ta1"));
+        assertFalse(set.contains(""));
+    }
+
+    @Test
+    void writeToAndReadFromKeepEveryId() throws IOException {
+        TransactionIdSet set = new TransactionIdSet(2, false);
+        List<String> ids = ids(new Random(19), 5_000);
+        for (String id : ids) {
+            set.add(id);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        set.writeTo(new DataOutputStream(bytes));
+
+        TransactionIdSet copy = new TransactionIdSet(4, true);
+        copy.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        for (String id : ids) {
+            assertTrue(copy.contains(id), id);
+        }
+        for (String id : ids(new Random(23), 5_000)) {
+            assertEquals(ids.contains(id), copy.contains(id), id);
+        }
+    }
+
+    // Ids of every kind, drawn from small pools so that they repeat
+    private static List<String> ids(Random random, int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int n = random.nextInt(count / 4);
+            String uuid = new UUID(n * 0x9E3779B97F4A7C15L, n).toString();
+            ids.add(switch (random.nextInt(7)) {
+                case 0, 1 -> uuid;
+                case 2 -> uuid.toUpperCase();
+                case 3 -> "t" + n;
+                case 4 -> String.format("%016d", n);
+                case 5 -> String.format("%017d", n);
+                default -> "tä" + n;
+            });
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,99 @@
+package com.playtech.assignment;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * Service mode on the inputs of the test-data directories: the rows are posted in several batches, the events of the
+ * batches together and GET /balances must equal the outputs in src/test/resources/regression, like one run over the
+ * whole transactions file. A malformed batch is refused with 400 and none of its rows changes a balance.
+ */
+class TransactionServiceTest {
+    private static final String EVENTS_HEADER = "transaction_id,status,message\n";
+    private static final int BATCHES = 3;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private TransactionService service;
+
+    @AfterEach
+    void stop() {
+        if (service != null) {
+            // no exchange is in progress, there is nothing to wait for
+            service.stop(0);
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("com.playtech.assignment.TestData#dataSets")
+    void batchesGiveTheOutputOfOneRun(String dataSet) throws Exception {
+        Path input = TestData.input(dataSet);
+        start(input.resolve("users.csv"));
+        List<String> rows = Files.readAllLines(input.resolve("transactions.csv"));
+        String header = rows.get(0);
+        rows = rows.subList(1, rows.size());
+
+        StringBuilder events = new StringBuilder(EVENTS_HEADER);
+        for (int batch = 0; batch < BATCHES; batch++) {
+            List<String> batchRows = rows.subList(rows.size() * batch / BATCHES, rows.size() * (batch + 1) / BATCHES);
+            HttpResponse<String> response = post(header + "\n" + String.join("\n", batchRows) + "\n");
+            assertEquals(200, response.statusCode());
+            assertEquals(EVENTS_HEADER, response.body().substring(0, EVENTS_HEADER.length()));
+            events.append(response.body().substring(EVENTS_HEADER.length()));
+        }
+
+        assertEquals(Files.readString(TestData.EXPECTED.resolve(dataSet).resolve("events.csv")), events.toString());
+        assertEquals(Files.readString(TestData.EXPECTED.resolve(dataSet).resolve("balances.csv")), get("/balances").body());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"t9,u1,DEPOSIT", "t9,u1,DEPOSIT,ten,TRANSFER,EE382200221020145685"})
+    void malformedBatchChangesNoBalance(String malformedRow) throws Exception {
+        Path input = TestData.input(TestData.HALF_VALIDATIONS);
+        start(input.resolve("users.csv"));
+        List<String> rows = Files.readAllLines(input.resolve("transactions.csv"));
+        String balances = get("/balances").body();
+
+        // the valid rows before the malformed one are not processed either
+        HttpResponse<String> response = post(String.join("\n", rows.subList(0, 40)) + "\n" + malformedRow + "\n");
+        assertEquals(400, response.statusCode());
+        assertEquals(balances, get("/balances").body());
+
+        // the ids of the refused batch are still unused
+        response = post(String.join("\n", rows) + "\n");
+        assertEquals(200, response.statusCode());
+        assertEquals(Files.readString(TestData.EXPECTED.resolve(TestData.HALF_VALIDATIONS).resolve("events.csv")), response.body());
+    }
+
+    private void start(Path users) throws IOException {
+        ReferenceData reference = ReferenceData.read(users, TestData.BINS, Path.of("country_codes.txt"));
+        service = new TransactionService(reference.users, reference.binTable, reference.countryCodes, new ProcessingMetrics());
+        service.start(0);
+    }
+
+    private HttpResponse<String> post(String csv) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(uri("/transactions")).POST(HttpRequest.BodyPublishers.ofString(csv)).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(uri(path)).GET().build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + service.port() + path);
+    }
+}